@@ -0,0 +1,83 @@
+package lwhitelaw.cas;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * A content-addressable storage device with non-blocking operations. Each method returns immediately with a future
+ * that completes when the operation does. As with {@link CAS}, failures are reported by completing with null or false
+ * rather than exceptionally. Futures may be completed on any thread, so dependent actions should be short or
+ * be moved to an executor of their own.
+ *
+ */
+public interface AsyncCAS extends AutoCloseable {
+	/**
+	 * Write this block to storage. The future completes with the hash once the block has been written,
+	 * or with null if the block could not be written.
+	 * @param data the data to write
+	 * @return a future hash or null
+	 * @throws NullPointerException if data is null
+	 */
+	CompletableFuture<Hash> write(byte[] data);
+	/**
+	 * Write a batch of blocks to storage. The future completes with a list of hashes in the same order as the blocks,
+	 * with null for any block that could not be written. The default issues one write per block.
+	 * @param blocks the blocks to write
+	 * @return a future list of hashes
+	 * @throws NullPointerException if the list or any block in it is null
+	 */
+	default CompletableFuture<List<Hash>> writeAll(List<byte[]> blocks) {
+		if (blocks == null) throw new NullPointerException("Null block list");
+		@SuppressWarnings("unchecked")
+		CompletableFuture<Hash>[] writes = (CompletableFuture<Hash>[]) new CompletableFuture<?>[blocks.size()];
+		for (int i = 0; i < writes.length; i++) {
+			writes[i] = write(blocks.get(i));
+		}
+		return CompletableFuture.allOf(writes).thenApply((v) -> {
+			Hash[] hashes = new Hash[writes.length];
+			for (int i = 0; i < hashes.length; i++) {
+				hashes[i] = writes[i].join();
+			}
+			return Arrays.asList(hashes);
+		});
+	}
+	/**
+	 * Read a block from storage. The future completes with the data if found, or null if it does not exist or
+	 * cannot be read.
+	 * @param hash The hash to query
+	 * @return The future block or null
+	 * @throws NullPointerException if hash is null
+	 */
+	CompletableFuture<byte[]> read(Hash hash);
+	/**
+	 * Check existence of a block. The future completes with true if the data could be accessed.
+	 * @param hash The hash to query
+	 * @return true if the block exists
+	 * @throws NullPointerException if hash is null
+	 */
+	CompletableFuture<Boolean> exists(Hash hash);
+	/**
+	 * Return a list of hashes this CAS has that have the provided prefix. See {@link CAS#suggest(Hash)}.
+	 * @param prefix the hash prefix to try to find suggestions for.
+	 * @return a future list of suggested hashes.
+	 */
+	default CompletableFuture<List<Hash>> suggest(Hash prefix) {
+		return CompletableFuture.completedFuture(Collections.emptyList());
+	}
+
+	/**
+	 * Adapt a blocking CAS by running its operations on an executor. Closing the adapter closes the CAS,
+	 * but not the executor.
+	 * @param cas the CAS to adapt
+	 * @param executor the executor to run blocking operations on
+	 * @return an asynchronous view of the CAS
+	 */
+	public static AsyncCAS of(CAS cas, Executor executor) {
+		if (cas == null) throw new NullPointerException("CAS is null");
+		if (executor == null) throw new NullPointerException("Executor is null");
+		return new AsyncCASAdapter(cas, executor);
+	}
+}
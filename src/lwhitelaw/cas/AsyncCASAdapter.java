@@ -0,0 +1,73 @@
+package lwhitelaw.cas;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * Runs the operations of a blocking CAS on an executor. Returned from {@link AsyncCAS#of(CAS, Executor)}.
+ * A runtime exception thrown by the blocking CAS is reported as a failure, as with any other.
+ */
+final class AsyncCASAdapter implements AsyncCAS {
+	private final CAS cas;
+	private final Executor executor;
+
+	AsyncCASAdapter(CAS cas, Executor executor) {
+		this.cas = cas;
+		this.executor = executor;
+	}
+
+	@Override
+	public CompletableFuture<Hash> write(byte[] data) {
+		if (data == null) throw new NullPointerException("Null data byte array");
+		return run(() -> cas.write(data), null);
+	}
+
+	@Override
+	public CompletableFuture<List<Hash>> writeAll(List<byte[]> blocks) {
+		if (blocks == null) throw new NullPointerException("Null block list");
+		for (byte[] data : blocks) {
+			if (data == null) throw new NullPointerException("Null data byte array");
+		}
+		return run(() -> cas.writeAll(blocks), Arrays.asList(new Hash[blocks.size()]));
+	}
+
+	@Override
+	public CompletableFuture<byte[]> read(Hash hash) {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		return run(() -> cas.read(hash), null);
+	}
+
+	@Override
+	public CompletableFuture<Boolean> exists(Hash hash) {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		return run(() -> cas.exists(hash), false);
+	}
+
+	@Override
+	public CompletableFuture<List<Hash>> suggest(Hash prefix) {
+		return run(() -> cas.suggest(prefix), Collections.emptyList());
+	}
+
+	/*
+	 * Run an operation on the executor, completing with the failure value if it throws.
+	 */
+	private <T> CompletableFuture<T> run(Supplier<T> op, T failed) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return op.get();
+			} catch (RuntimeException ex) {
+				ex.printStackTrace();
+				return failed;
+			}
+		}, executor);
+	}
+
+	@Override
+	public void close() throws Exception {
+		cas.close();
+	}
+}
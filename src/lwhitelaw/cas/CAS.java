@@ -4,8 +4,11 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 /**
@@ -27,13 +30,40 @@ public interface CAS extends AutoCloseable {
 	 */
 	Hash write(byte[] data);
 	/**
-	 * Open an output stream to the specified CAS, buffering data into a byte array.
+	 * Write a batch of blocks to storage. When the method returns, every block with a non-null hash in the result
+	 * will have been written as if by {@link #write(byte[])}. Implementations may coalesce appends, syncs and
+	 * network round trips across the whole batch. The default writes the blocks one at a time.
+	 * @param blocks the blocks to write
+	 * @return a list of hashes in the same order as the blocks, with null for any block that could not be written
+	 * @throws NullPointerException if the list or any block in it is null
+	 */
+	default List<Hash> writeAll(List<byte[]> blocks) {
+		if (blocks == null) throw new NullPointerException("Null block list");
+		List<Hash> hashes = new ArrayList<>(blocks.size());
+		for (byte[] data : blocks) {
+			hashes.add(write(data));
+		}
+		return hashes;
+	}
+	/**
+	 * Open an output stream that writes one block to this CAS. The block is written when the stream is closed,
+	 * after which its hash is available from the stream. Implementations may hash the data and send it to storage
+	 * as it is written; the default buffers it into a byte array and calls {@link #write(byte[])} on close.
+	 * @return an output stream for writing.
+	 * @throws IOException if the stream cannot be opened
+	 */
+	default HashOutputStream writeStream() throws IOException {
+		return new HashOutputStream(this);
+	}
+	/**
+	 * Open an output stream to the specified CAS. See {@link #writeStream()}.
 	 * @param cas The CAS to write to.
 	 * @return an output stream for writing.
+	 * @throws IOException if the stream cannot be opened
 	 */
-	public static HashOutputStream openOutputStream(CAS cas) {
+	public static HashOutputStream openOutputStream(CAS cas) throws IOException {
 		if (cas == null) throw new NullPointerException("CAS is null");
-		return new HashOutputStream(cas);
+		return cas.writeStream();
 	}
 	/**
 	 * Open an output stream to the specified CAS, buffering data into a byte array output stream constructed by a function.
@@ -53,19 +83,44 @@ public interface CAS extends AutoCloseable {
 	 * @throws NullPointerException if hash is null
 	 */
 	byte[] read(Hash hash);
+	/**
+	 * Read a block from storage as a read-only buffer. Returns the buffer if found, or null if it does not exist or
+	 * cannot be read. The buffer's position is zero and its limit is the block length. Implementations may return
+	 * a view of memory-mapped storage instead of a copy; the default wraps the result of {@link #read(Hash)}.
+	 * @param hash The hash to query
+	 * @return The block as a read-only buffer or null
+	 * @throws NullPointerException if hash is null
+	 */
+	default ByteBuffer readBuffer(Hash hash) {
+		byte[] data = read(hash);
+		if (data == null) return null;
+		return ByteBuffer.wrap(data).asReadOnlyBuffer();
+	}
 	/**
 	 * Open an input stream to a block read from storage. Returns an input stream, or throws an exception if the operation
-	 * failed.
-	 * @param cas The CAS to open against.
+	 * failed. Implementations may read the block lazily as the stream is consumed; the default reads it
+	 * whole with {@link #read(Hash)}.
 	 * @param hash The hash to read
 	 * @return a new input stream
 	 * @throws IOException if the data cannot be read
+	 * @throws NullPointerException if hash is null
 	 */
-	public static InputStream openInputStream(CAS cas, Hash hash) throws IOException {
-		byte[] buf = cas.read(hash);
+	default InputStream readStream(Hash hash) throws IOException {
+		byte[] buf = read(hash);
 		if (buf == null) throw new IOException("Data " + hash.toString() + " cannot be accessed");
 		return new ByteArrayInputStream(buf);
 	}
+	/**
+	 * Open an input stream to a block read from storage. See {@link #readStream(Hash)}.
+	 * @param cas The CAS to open against.
+	 * @param hash The hash to read
+	 * @return a new input stream
+	 * @throws IOException if the data cannot be read
+	 */
+	public static InputStream openInputStream(CAS cas, Hash hash) throws IOException {
+		if (cas == null) throw new NullPointerException("CAS is null");
+		return cas.readStream(hash);
+	}
 	/**
 	 * Check existence of a block. Returns true if the data could be accessed. The returned result is
 	 * immediately outdated and does not ensure success of any following read call.
@@ -84,4 +139,16 @@ public interface CAS extends AutoCloseable {
 	default List<Hash> suggest(Hash prefix) {
 		return Collections.emptyList();
 	}
+	
+	/**
+	 * Pass the hash of every block this CAS holds to an action, in no particular order. Blocks written while
+	 * this method runs may or may not be included, and may be passed more than once. This is intended for building indexes over a store at startup.
+	 * The default throws an UnsupportedOperationException.
+	 * @param action the action to run on each hash
+	 * @throws java.io.UncheckedIOException if the store cannot be listed
+	 * @throws UnsupportedOperationException if this CAS cannot list its blocks
+	 */
+	default void forEachHash(Consumer<Hash> action) {
+		throw new UnsupportedOperationException("Listing blocks is not supported");
+	}
 }
@@ -7,7 +7,9 @@ import java.util.Arrays;
  *
  */
 public final class Hash {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
 	private final byte[] hash;
+	private int hashCode; //0 until computed
 	/**
 	 * Construct a hash from this byte array.
 	 * @param b the byte array to use as the hash
@@ -25,16 +27,18 @@ public final class Hash {
 		if (s == null) throw new NullPointerException();
 		if (s.length() % 2 != 0) throw new IllegalArgumentException();
 		hash = new byte[s.length()/2];
-		try {
-			for (int i = 0; i < hash.length; i++) {
-				int byteValue = Integer.parseInt(s.substring(i*2+0, i*2+2), 16);
-				hash[i] = (byte)byteValue;
-			}
-		} catch (NumberFormatException ex) {
-			throw new IllegalArgumentException();
+		for (int i = 0; i < hash.length; i++) {
+			hash[i] = (byte) (hexDigit(s.charAt(i*2+0)) << 4 | hexDigit(s.charAt(i*2+1)));
 		}
 	}
 	
+	private static int hexDigit(char c) {
+		if (c >= '0' && c <= '9') return c - '0';
+		if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+		if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+		throw new IllegalArgumentException();
+	}
+	
 	/**
 	 * Return the byte array. The array should not be mutated.
 	 * @return the byte array
@@ -44,10 +48,15 @@ public final class Hash {
 	}
 
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result = prime * result + Arrays.hashCode(hash);
-		return result;
+		//Cached, as the same hash is looked up over and over; proxies seed replica placement with this value
+		int h = hashCode;
+		if (h == 0) {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + Arrays.hashCode(hash);
+			hashCode = h = result;
+		}
+		return h;
 	}
 
 	@Override
@@ -59,6 +68,8 @@ public final class Hash {
 		if (getClass() != obj.getClass())
 			return false;
 		Hash other = (Hash) obj;
+		if (hashCode != 0 && other.hashCode != 0 && hashCode != other.hashCode)
+			return false;
 		if (!Arrays.equals(hash, other.hash))
 			return false;
 		return true;
@@ -71,10 +82,11 @@ public final class Hash {
 	@Override
 	public String toString() {
 		byte[] hashb = hashContents();
-		StringBuilder sb = new StringBuilder();
+		char[] chars = new char[hashb.length*2];
 		for (int i = 0; i < hashb.length; i++) {
-			sb.append(String.format("%02x", hashb[i]));
+			chars[i*2+0] = HEX[(hashb[i] >>> 4) & 0xF];
+			chars[i*2+1] = HEX[hashb[i] & 0xF];
 		}
-		return sb.toString();
+		return new String(chars);
 	}
 }
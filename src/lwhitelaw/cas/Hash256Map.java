@@ -0,0 +1,64 @@
+package lwhitelaw.cas;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A map from hashes that stores 256-bit hashes inline as four longs in an open-addressing table, for indexes of
+ * millions of blocks. Hashes of other lengths are accepted but kept in an ordinary hash map. Values may not be null.
+ * Keys are recreated when iterated, so iteration allocates. Entries cannot be removed except by {@link #clear()}.
+ * Not thread safe.
+ *
+ * @param <V> the value type
+ */
+public class Hash256Map<V> extends AbstractMap<Hash,V> {
+	private final Hash256Table table = new Hash256Table();
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V get(Object key) {
+		if (!(key instanceof Hash)) return null;
+		return (V) table.get((Hash) key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V put(Hash key, V value) {
+		if (key == null) throw new NullPointerException("Null hash instance");
+		return (V) table.put(key, value);
+	}
+
+	@Override
+	public int size() {
+		return table.size();
+	}
+
+	@Override
+	public void clear() {
+		table.clear();
+	}
+
+	@Override
+	public Set<Map.Entry<Hash,V>> entrySet() {
+		return new AbstractSet<Map.Entry<Hash,V>>() {
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			@Override
+			public Iterator<Map.Entry<Hash,V>> iterator() {
+				return (Iterator) table.iterator();
+			}
+
+			@Override
+			public int size() {
+				return table.size();
+			}
+		};
+	}
+}
@@ -0,0 +1,54 @@
+package lwhitelaw.cas;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A set of hashes that stores 256-bit hashes inline as four longs in an open-addressing table, for sets of
+ * millions of hashes. Hashes of other lengths are accepted but kept in an ordinary hash set. Hashes are
+ * recreated when iterated, so iteration allocates. Elements cannot be removed except by {@link #clear()}.
+ * Not thread safe.
+ *
+ */
+public class Hash256Set extends AbstractSet<Hash> {
+	private final Hash256Table table = new Hash256Table();
+
+	@Override
+	public boolean add(Hash hash) {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		return table.put(hash, Boolean.TRUE) == null;
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (!(o instanceof Hash)) return false;
+		return table.get((Hash) o) != null;
+	}
+
+	@Override
+	public int size() {
+		return table.size();
+	}
+
+	@Override
+	public void clear() {
+		table.clear();
+	}
+
+	@Override
+	public Iterator<Hash> iterator() {
+		Iterator<Map.Entry<Hash,Object>> it = table.iterator();
+		return new Iterator<Hash>() {
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public Hash next() {
+				return it.next().getKey();
+			}
+		};
+	}
+}
@@ -0,0 +1,179 @@
+package lwhitelaw.cas;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Open-addressing hash table behind {@link Hash256Set} and {@link Hash256Map}. A 256-bit hash is kept inline as four
+ * longs, so an entry costs 32 bytes of key plus a value reference rather than a Hash, its array and a map node.
+ * The all-zero hash marks an empty slot, so it is kept to one side, as are hashes of any other length.
+ * Collisions are resolved by linear probing. Entries cannot be removed except all at once. Not thread safe.
+ *
+ */
+final class Hash256Table {
+	private static final int WIDTH = 32;
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int size;
+	private boolean hasZero;
+	private Object zeroValue;
+	private Map<Hash,Object> overflow;
+
+	Hash256Table() {
+		allocate(16);
+	}
+
+	private void allocate(int slots) {
+		keys = new long[slots*4];
+		values = new Object[slots];
+		mask = slots - 1;
+	}
+
+	int size() {
+		return size + (hasZero ? 1 : 0) + (overflow == null ? 0 : overflow.size());
+	}
+
+	void clear() {
+		allocate(16);
+		size = 0;
+		hasZero = false;
+		zeroValue = null;
+		overflow = null;
+	}
+
+	/*
+	 * Return the slot holding the hash's key, or the empty slot where it would go.
+	 */
+	private int slot(long k0, long k1, long k2, long k3) {
+		//Hashes are uniform already; the multiply only spreads them over the low bits
+		int i = (int) ((k0 * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+		while (true) {
+			int base = i*4;
+			long a = keys[base], b = keys[base+1], c = keys[base+2], d = keys[base+3];
+			if ((a | b | c | d) == 0) return i;
+			if (a == k0 && b == k1 && c == k2 && d == k3) return i;
+			i = (i + 1) & mask;
+		}
+	}
+
+	Object get(Hash hash) {
+		byte[] h = hash.hashContents();
+		if (h.length != WIDTH) return overflow == null ? null : overflow.get(hash);
+		long k0 = word(h, 0), k1 = word(h, 8), k2 = word(h, 16), k3 = word(h, 24);
+		if ((k0 | k1 | k2 | k3) == 0) return zeroValue;
+		return values[slot(k0, k1, k2, k3)];
+	}
+
+	/**
+	 * Map a hash to a value.
+	 * @param hash the hash
+	 * @param value the value, not null
+	 * @return the previous value, or null if there was none
+	 */
+	Object put(Hash hash, Object value) {
+		if (value == null) throw new NullPointerException("Null value");
+		byte[] h = hash.hashContents();
+		if (h.length != WIDTH) {
+			if (overflow == null) overflow = new HashMap<>();
+			return overflow.put(hash, value);
+		}
+		long k0 = word(h, 0), k1 = word(h, 8), k2 = word(h, 16), k3 = word(h, 24);
+		if ((k0 | k1 | k2 | k3) == 0) {
+			Object old = zeroValue;
+			hasZero = true;
+			zeroValue = value;
+			return old;
+		}
+		int i = slot(k0, k1, k2, k3);
+		Object old = values[i];
+		if (old == null) {
+			int base = i*4;
+			keys[base] = k0;
+			keys[base+1] = k1;
+			keys[base+2] = k2;
+			keys[base+3] = k3;
+			size++;
+		}
+		values[i] = value;
+		//Grow past a load of 3/4
+		if (old == null && size*4L > (mask + 1)*3L) grow();
+		return old;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate((mask + 1)*2);
+		for (int j = 0; j < oldValues.length; j++) {
+			if (oldValues[j] == null) continue;
+			int base = j*4;
+			int i = slot(oldKeys[base], oldKeys[base+1], oldKeys[base+2], oldKeys[base+3]);
+			System.arraycopy(oldKeys, base, keys, i*4, 4);
+			values[i] = oldValues[j];
+		}
+	}
+
+	Iterator<Map.Entry<Hash,Object>> iterator() {
+		return new Iterator<Map.Entry<Hash,Object>>() {
+			private final long[] k = keys;
+			private final Object[] v = values;
+			private final Iterator<Map.Entry<Hash,Object>> rest = overflow == null ? null : overflow.entrySet().iterator();
+			private int next = -1;
+			private boolean zeroDone = !hasZero;
+			{
+				advance();
+			}
+
+			private void advance() {
+				do {
+					next++;
+				} while (next < v.length && v[next] == null);
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next < v.length || !zeroDone || (rest != null && rest.hasNext());
+			}
+
+			@Override
+			public Map.Entry<Hash,Object> next() {
+				if (next < v.length) {
+					int base = next*4;
+					Map.Entry<Hash,Object> e = new AbstractMap.SimpleImmutableEntry<>(
+							toHash(k[base], k[base+1], k[base+2], k[base+3]), v[next]);
+					advance();
+					return e;
+				}
+				if (!zeroDone) {
+					zeroDone = true;
+					return new AbstractMap.SimpleImmutableEntry<>(new Hash(new byte[WIDTH]), zeroValue);
+				}
+				if (rest != null) return new AbstractMap.SimpleImmutableEntry<>(rest.next());
+				throw new NoSuchElementException();
+			}
+		};
+	}
+
+	private static long word(byte[] b, int off) {
+		long v = 0;
+		for (int i = 0; i < 8; i++) {
+			v = (v << 8) | (b[off + i] & 0xFF);
+		}
+		return v;
+	}
+
+	private static Hash toHash(long k0, long k1, long k2, long k3) {
+		byte[] b = new byte[WIDTH];
+		long[] words = {k0, k1, k2, k3};
+		for (int w = 0; w < 4; w++) {
+			for (int i = 0; i < 8; i++) {
+				b[w*8 + i] = (byte) (words[w] >>> (56 - i*8));
+			}
+		}
+		return new Hash(b);
+	}
+}
@@ -16,6 +16,7 @@ public class HashOutputStream extends OutputStream {
 	private CAS cas;
 	private Hash finalHash;
 	private ByteArrayOutputStream baos;
+	private boolean aborted;
 	
 	/**
 	 * Construct a new hash output stream over a CAS.
@@ -37,15 +38,40 @@ public class HashOutputStream extends OutputStream {
 		this.baos = ctor.get();
 	}
 	
+	/**
+	 * Construct a hash output stream for a subclass that sends its data somewhere other than a byte array.
+	 * Such a subclass must override every write method, {@link #flush()}, {@link #close()}, {@link #abort()} and
+	 * {@link #getHash()}.
+	 */
+	protected HashOutputStream() {
+		this.cas = null;
+		this.finalHash = null;
+		this.baos = null;
+	}
+	
 	/**
 	 * Close the underlying stream and causes a CAS write operation.
-	 * The hash is available after this call.
-	 * @throws IOException if an I/O error occurs
+	 * The hash is available after this call. Closing again after a successful write does nothing.
+	 * @throws IOException if an I/O error occurs or the CAS write fails
 	 */
 	@Override
 	public void close() throws IOException {
+		if (finalHash != null || aborted) return;
 		baos.close();
 		finalHash = cas.write(baos.toByteArray());
+		if (finalHash == null) throw new IOException("CAS write failed");
+	}
+	
+	/**
+	 * Discard the data written so far without writing a block, as when the data turned out to be incomplete.
+	 * Closing the stream afterwards does nothing, and no hash is available. Aborting after a successful close
+	 * does nothing.
+	 * @throws IOException if an I/O error occurs while discarding the data
+	 */
+	public void abort() throws IOException {
+		if (finalHash != null) return;
+		aborted = true;
+		baos = new ByteArrayOutputStream(0);
 	}
 	
 	/**
@@ -83,7 +109,6 @@ public class HashOutputStream extends OutputStream {
 	/**
 	 * If the stream is closed, the hash from a CAS write operation is returned.
 	 * Otherwise an IllegalStateException is thrown.
-	 * The hash will be null if the CAS write failed.
 	 * @return the hash
 	 * @throws IllegalStateException if the stream hasn't been closed
 	 */
@@ -1,8 +1,11 @@
 package lwhitelaw.cas;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
 /**
  * Implements a hashing algorithm such as SHA3-256.
- * A hasher may be used over and over again.
+ * A hasher may be used over and over again, and must be safe to use from many threads at once.
  *
  */
 public interface Hasher {
@@ -12,4 +15,73 @@ public interface Hasher {
 	 * @return the hash of this data.
 	 */
 	Hash hash(byte[] data);
+	/**
+	 * Get the hash for the remaining data in this buffer. The buffer's position is advanced to its limit.
+	 * The default copies the data into an array for {@link #hash(byte[])}.
+	 * @param data the data to hash
+	 * @return the hash of this data.
+	 */
+	default Hash hash(ByteBuffer data) {
+		byte[] copy = new byte[data.remaining()];
+		data.get(copy);
+		return hash(copy);
+	}
+	/**
+	 * Start hashing data incrementally. The default buffers everything given to the digest and hashes it
+	 * with {@link #hash(byte[])} when finished, so it holds the whole input in memory.
+	 * Implementations should override it to hash data as it arrives.
+	 * @return a new digest
+	 */
+	default Digest newDigest() {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		return new Digest() {
+			@Override
+			public void update(byte[] data, int off, int len) {
+				baos.write(data, off, len);
+			}
+			@Override
+			public Hash finish() {
+				return hash(baos.toByteArray());
+			}
+		};
+	}
+	
+	/**
+	 * An incremental hash computation, created by {@link Hasher#newDigest()}. A digest is used once:
+	 * feed it data with update, then get the hash from finish. Digests are independent of each other,
+	 * but one digest must not be updated from several threads at once.
+	 *
+	 */
+	interface Digest {
+		/**
+		 * Add data to the hash.
+		 * @param data the array holding the data
+		 * @param off the offset of the data
+		 * @param len the length of the data
+		 */
+		void update(byte[] data, int off, int len);
+		/**
+		 * Add the remaining data in a buffer to the hash. The buffer's position is advanced to its limit.
+		 * The default goes through {@link #update(byte[], int, int)}, copying if the buffer has no array.
+		 * @param data the data
+		 */
+		default void update(ByteBuffer data) {
+			if (data.hasArray()) {
+				update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+				data.position(data.limit());
+			} else {
+				byte[] tmp = new byte[Math.min(data.remaining(), 65536)];
+				while (data.hasRemaining()) {
+					int n = Math.min(data.remaining(), tmp.length);
+					data.get(tmp, 0, n);
+					update(tmp, 0, n);
+				}
+			}
+		}
+		/**
+		 * Complete the hash. The digest may not be used afterwards.
+		 * @return the hash of all data given to this digest
+		 */
+		Hash finish();
+	}
 }
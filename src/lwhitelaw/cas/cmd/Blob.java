@@ -1,128 +1,220 @@
 package lwhitelaw.cas.cmd;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterOutputStream;
+
+import lwhitelaw.cas.Hash;
 
 /*
  * Blob {
  * 	Magic "BLOB"
  * 	int dataLength
+ * 	byte[dataLength] data (DEFLATE)
+ * }
+ * 
+ * Blob {
+ * 	Magic "BLB2"
+ * 	ubyte codec
+ * 	int rawLength
+ * 	Hash dictionary (only for deflate-dict)
+ * 	int dataLength
  * 	byte[dataLength] data
  * }
+ * 
+ * DEFLATE blobs are written in the first format, so they hash the same as blobs written before codecs existed and
+ * deduplicate against them. Blobs in any other codec are written in the second.
+ * 
+ * Data that doesn't compress is stored raw rather than spending time to make it slightly bigger. Data that looks
+ * random from its byte frequencies, as compressed formats and media do, first has a sample from its middle
+ * compressed, and is only stored raw without further work if the sample saved too little; byte frequencies miss
+ * repeats longer than a byte. Anything else is compressed and kept raw if that saved too little.
+ * 
+ * A blob compressed against a dictionary records the hash of the Dictionary object, and can only be decompressed
+ * once that dictionary has been loaded into Codecs.
+ * 
+ * Hash {
+ * 	unsigned byte hashlength
+ * 	byte[hashlength] hash 
+ * }
  */
 public class Blob extends CASObject {
-	private byte[] data;
+	private static final byte[] MAGIC = "BLOB".getBytes();
+	private static final byte[] MAGIC2 = "BLB2".getBytes();
+	//Compression must save at least 1/MIN_SAVINGS of the data to be kept
+	private static final int MIN_SAVINGS = 32;
+	//Bits per byte above which data is taken to be incompressible, for large samples
+	private static final double MAX_ENTROPY = 7.95;
+	private static final int SAMPLE_BLOCK = 4096;
+	private static final int SAMPLE_BLOCKS = 16;
+	//Size of the sample compressed when data looks random
+	private static final int TRIAL_SAMPLE = 65536;
+	//A view of the buffer the blob was parsed from, or of the compressed array
+	private ByteBuffer data;
+	//null while the dictionary is not loaded
+	private Codec codec;
+	//-1 for the first format, which doesn't record it
+	private int rawLength;
+	private Hash dictionary;
 
 	@Override
-	public byte[] getByteArray() {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(1048576);
-		DataOutputStream dos = new DataOutputStream(baos);
-		try {
-			byte[] magic = "BLOB".getBytes();
-			dos.write(magic);
-			dos.writeInt(data.length);
-			dos.write(data);
-			dos.close();
-			return baos.toByteArray();
-		} catch (IOException ex) {
-			//Unlikely to ever happen
-			throw new AssertionError("Should not happen");
-		}
-	}
-
-	@Override
-	public void parseByteArray(byte[] data) throws BadParseException {
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-		try {
-			//Magic value
-			byte[] magic = "BLOB".getBytes();
-			byte[] start = new byte[4];
-			dis.readFully(start);
-			if (!Arrays.equals(magic, start)) throw new BadParseException();
-			//Hash list size
-			int datasize = dis.readInt();
-			this.data = new byte[datasize];
-			dis.readFully(this.data);
-			//Should be no more data here
-			if (dis.read() != -1) throw new BadParseException();
-			dis.close();
-		} catch (IOException ex) {
-			//thrown on EOF. otherwise cannot fail on data already resident in memory.
-			throw new BadParseException();
-		}
+	public int encodedLength() {
+		int header = rawLength < 0 ? 8 : 13 + (dictionary == null ? 0 : hashLength(dictionary));
+		return header + data.remaining();
 	}
 	
+	/**
+	 * Return the decompressed data.
+	 * @return the data
+	 * @throws IllegalStateException if the data is compressed against a dictionary that hasn't been loaded
+	 */
 	public byte[] getData() {
-		return decompress(data);
-//		return data;
+		Codec codec = getCodec();
+		if (codec == null) throw new IllegalStateException("Dictionary " + dictionary.toString() + " not loaded");
+		byte[] cdata = new byte[data.remaining()];
+		data.duplicate().get(cdata);
+		try {
+			return codec.decompress(cdata, rawLength);
+		} catch (BadParseException ex) {
+			throw new AssertionError("Corrupt blob",ex);
+		}
 	}
 	
+	/**
+	 * Set the data, compressed with the default codec.
+	 * @param data the data
+	 */
 	public void setData(byte[] data) {
-		if (data == null) throw new NullPointerException();
-		this.data = compress(data);
-//		this.data = data;
+		setData(data, Codecs.getDefault());
 	}
 	
-	private static byte[] compress(byte[] data) {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length);
-		Deflater def = new Deflater(1);
-		DeflaterOutputStream dos = new DeflaterOutputStream(baos, def);
-		try {
-			dos.write(data);
-			dos.close();
-			return baos.toByteArray();
-		} catch (IOException e) {
-			throw new AssertionError("Should not happen",e);
+	/**
+	 * Set the data, compressed with the given codec, or stored raw if it doesn't compress.
+	 * @param data the data
+	 * @param codec the codec
+	 */
+	public void setData(byte[] data, Codec codec) {
+		if (data == null || codec == null) throw new NullPointerException();
+		byte[] cdata = null;
+		if (codec != Codecs.RAW && (!looksRandom(data) || sampleCompresses(data, codec))) {
+			cdata = codec.compress(data);
+			if (cdata.length > data.length - data.length/MIN_SAVINGS) cdata = null;
+		}
+		if (cdata == null) {
+			codec = Codecs.RAW;
+			cdata = codec.compress(data);
 		}
+		this.data = ByteBuffer.wrap(cdata);
+		this.codec = codec;
+		this.rawLength = codec == Codecs.DEFLATE ? -1 : data.length;
+		this.dictionary = codec.dictionary();
 	}
 	
-	private static byte[] decompress(byte[] cdata) {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(cdata.length*2);
-		Inflater def = new Inflater();
-		InflaterOutputStream dos = new InflaterOutputStream(baos, def);
-		try {
-			dos.write(cdata);
-			dos.close();
-			return baos.toByteArray();
-		} catch (IOException e) {
-			throw new AssertionError("Should not happen",e);
+	/*
+	 * Estimate the order-0 entropy of the data from a sample of evenly spaced blocks, and return whether it
+	 * is too high for compression to be worth trying. Small data is always worth a try.
+	 */
+	private static boolean looksRandom(byte[] data) {
+		if (data.length < SAMPLE_BLOCK) return false;
+		int[] counts = new int[256];
+		if (data.length <= SAMPLE_BLOCK*SAMPLE_BLOCKS) {
+			for (byte v : data) counts[v & 0xFF]++;
+		} else {
+			int stride = data.length / SAMPLE_BLOCKS;
+			for (int b = 0; b < SAMPLE_BLOCKS; b++) {
+				int start = b * stride;
+				for (int i = start; i < start + SAMPLE_BLOCK; i++) counts[data[i] & 0xFF]++;
+			}
+		}
+		double n = 0;
+		double sum = 0;
+		for (int c : counts) {
+			if (c == 0) continue;
+			n += c;
+			sum += c * Math.log(c);
 		}
+		double entropy = (Math.log(n) - sum / n) / Math.log(2);
+		//Even random data falls short of 8 bits in a finite sample, by about 255/(2n ln 2)
+		return entropy > MAX_ENTROPY - 255 / (2 * n * Math.log(2));
+	}
+	
+	/*
+	 * Compress a sample from the middle of the data and return whether it saved enough to be worth compressing
+	 * the rest. Data no bigger than the sample is always worth a try.
+	 */
+	private static boolean sampleCompresses(byte[] data, Codec codec) {
+		if (data.length <= TRIAL_SAMPLE) return true;
+		int start = (data.length - TRIAL_SAMPLE) / 2;
+		byte[] sample = Arrays.copyOfRange(data, start, start + TRIAL_SAMPLE);
+		return codec.compress(sample).length <= TRIAL_SAMPLE - TRIAL_SAMPLE/MIN_SAVINGS;
+	}
+	
+	/**
+	 * Return the codec the data is compressed with.
+	 * @return the codec, or null if it needs a dictionary that hasn't been loaded
+	 */
+	public Codec getCodec() {
+		if (codec == null) codec = Codecs.forDictionary(dictionary);
+		return codec;
+	}
+	
+	/**
+	 * Return the hash of the dictionary the data is compressed against.
+	 * @return the dictionary hash, or null if there is none
+	 */
+	public Hash getDictionary() {
+		return dictionary;
 	}
 
 	@Override
-	public void writeData(OutputStream os) throws IOException {
-		DataOutputStream dos = new DataOutputStream(os);
-		byte[] magic = "BLOB".getBytes();
-		dos.write(magic);
-		dos.writeInt(data.length);
-		dos.write(data);
-		dos.close();
+	public void encode(ByteBuffer buf) {
+		if (rawLength < 0) {
+			buf.put(MAGIC);
+		} else {
+			buf.put(MAGIC2);
+			buf.put((byte) (dictionary != null ? DeflateCodec.DICTIONARY_ID : codec.id()));
+			buf.putInt(rawLength);
+			if (dictionary != null) putHash(buf, dictionary);
+		}
+		buf.putInt(data.remaining());
+		buf.put(data.duplicate());
 	}
 
 	@Override
-	public void readData(InputStream is) throws IOException, BadParseException {
-		DataInputStream dis = new DataInputStream(is);
+	protected void decode(ByteBuffer buf) throws BadParseException {
 		//Magic value
-		byte[] magic = "BLOB".getBytes();
 		byte[] start = new byte[4];
-		dis.readFully(start);
-		if (!Arrays.equals(magic, start)) throw new BadParseException();
-		//Hash list size
-		int datasize = dis.readInt();
-		this.data = new byte[datasize];
-		dis.readFully(this.data);
-		//Should be no more data here
-		if (dis.read() != -1) throw new BadParseException();
-		dis.close();
+		buf.get(start);
+		dictionary = null;
+		if (Arrays.equals(MAGIC, start)) {
+			codec = Codecs.DEFLATE;
+			rawLength = -1;
+		} else if (Arrays.equals(MAGIC2, start)) {
+			int id = buf.get() & 0xFF;
+			codec = Codecs.forId(id);
+			if (codec == null && id != DeflateCodec.DICTIONARY_ID) throw new BadParseException();
+			rawLength = buf.getInt();
+			if (rawLength < 0) throw new BadParseException();
+			if (id == DeflateCodec.DICTIONARY_ID) {
+				dictionary = getHash(buf);
+				codec = Codecs.forDictionary(dictionary);
+			}
+		} else {
+			throw new BadParseException();
+		}
+		//Compressed data size
+		int datasize = buf.getInt();
+		if (datasize < 0) throw new BadParseException();
+		ByteBuffer cdata = buf.duplicate();
+		cdata.limit(cdata.position() + datasize);
+		this.data = cdata.slice();
+		buf.position(buf.position() + datasize);
+	}
+	
+	/**
+	 * Return the length of the compressed data.
+	 * @return the length in bytes
+	 */
+	public int getCompressedLength() {
+		return data.remaining();
 	}
 }
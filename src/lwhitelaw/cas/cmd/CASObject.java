@@ -1,12 +1,108 @@
 package lwhitelaw.cas.cmd;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
+import lwhitelaw.cas.Hash;
+
+/**
+ * An object stored in a CAS. Each subclass defines its encoding once, as an exact length, an encoder writing into
+ * a buffer and a decoder reading from one; the byte array and stream methods are built on those. Decoding works
+ * on the buffer in place, so objects can be parsed straight out of {@link lwhitelaw.cas.CAS#readBuffer}, and
+ * subclasses may keep views of the buffer instead of copying from it. A buffer or array that has been parsed
+ * must not be changed afterwards.
+ *
+ */
 public abstract class CASObject {
-	public abstract byte[] getByteArray();
-	public abstract void parseByteArray(byte[] data) throws BadParseException;
-	public abstract void writeData(OutputStream os) throws IOException;
-	public abstract void readData(InputStream is) throws IOException, BadParseException;
+	/**
+	 * Return the length of this object's encoding.
+	 * @return the exact length in bytes
+	 */
+	public abstract int encodedLength();
+	/**
+	 * Encode this object at the buffer's position, advancing it by {@link #encodedLength()}.
+	 * @param buf the buffer to write to
+	 * @throws java.nio.BufferOverflowException if the buffer doesn't have room
+	 */
+	public abstract void encode(ByteBuffer buf);
+	/**
+	 * Decode an object from the buffer's position. Running out of data is detected by the caller.
+	 * @param buf the buffer to read from, in big-endian order
+	 * @throws BadParseException if the data isn't an object of this type
+	 */
+	protected abstract void decode(ByteBuffer buf) throws BadParseException;
+
+	public byte[] getByteArray() {
+		byte[] data = new byte[encodedLength()];
+		encode(ByteBuffer.wrap(data));
+		return data;
+	}
+
+	/**
+	 * Parse an object from the remaining bytes of a buffer, all of which must belong to it. The buffer's
+	 * position is not changed.
+	 * @param buf the buffer
+	 * @throws BadParseException if the data isn't an object of this type
+	 */
+	public void parseBuffer(ByteBuffer buf) throws BadParseException {
+		ByteBuffer b = buf.slice();
+		try {
+			decode(b);
+		} catch (BufferUnderflowException | IllegalArgumentException ex) {
+			//Lengths running past the end of the data
+			throw new BadParseException();
+		}
+		//Should be no more data here
+		if (b.hasRemaining()) throw new BadParseException();
+	}
+
+	public void parseByteArray(byte[] data) throws BadParseException {
+		parseBuffer(ByteBuffer.wrap(data));
+	}
+
+	public void writeData(OutputStream os) throws IOException {
+		os.write(getByteArray());
+		os.close();
+	}
+
+	public void readData(InputStream is) throws IOException, BadParseException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = is.read(buf)) != -1) baos.write(buf, 0, n);
+		is.close();
+		parseByteArray(baos.toByteArray());
+	}
+
+	protected static void expectMagic(ByteBuffer buf, byte[] magic) throws BadParseException {
+		for (byte b : magic) {
+			if (buf.get() != b) throw new BadParseException();
+		}
+	}
+
+	/*
+	 * Hash {
+	 * 	unsigned byte hashlength
+	 * 	byte[hashlength] hash
+	 * }
+	 */
+	protected static Hash getHash(ByteBuffer buf) {
+		byte[] hashdata = new byte[buf.get() & 0xFF];
+		buf.get(hashdata);
+		return new Hash(hashdata);
+	}
+
+	protected static void putHash(ByteBuffer buf, Hash h) {
+		byte[] hashcontents = h.hashContents();
+		buf.put((byte) hashcontents.length);
+		buf.put(hashcontents);
+	}
+
+	protected static int hashLength(Hash h) {
+		return 1 + h.hashContents().length;
+	}
 }
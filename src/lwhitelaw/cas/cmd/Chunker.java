@@ -0,0 +1,154 @@
+package lwhitelaw.cas.cmd;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Splits a stream of bytes into content-defined chunks using a Gear rolling hash with FastCDC-style
+ * normalized chunking. Each byte costs one shift, one add and one table lookup, and no byte is looked at
+ * twice. Nothing is hashed before the minimum chunk size. Between the minimum and the average size a
+ * boundary needs more zero bits than after it, which pulls chunk sizes in towards the average. A chunk is
+ * always cut at the maximum size. Boundaries depend only on the content since the previous boundary, so
+ * they are the same however the input is divided into spans.
+ *
+ */
+public final class Chunker {
+	public static final int DEFAULT_MIN_SIZE = 256*1024;
+	public static final int DEFAULT_AVG_SIZE = 1048576;
+	public static final int DEFAULT_MAX_SIZE = 10*1048576-8;
+	private static final long[] GEAR = new long[256];
+	static {
+		//Fixed table so chunk boundaries never change between runs; splitmix64 from a constant seed
+		long seed = 0x4341535F43444321L;
+		for (int i = 0; i < GEAR.length; i++) {
+			long z = (seed += 0x9E3779B97F4A7C15L);
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			GEAR[i] = z ^ (z >>> 31);
+		}
+	}
+	private final int minSize;
+	private final int avgSize;
+	private final int maxSize;
+	private final long maskS;
+	private final long maskL;
+	private final Consumer<byte[]> consumer;
+	private byte[] chunk;
+	private int length;
+	private long hash;
+
+	/**
+	 * Create a chunker with the default sizes: 256 KB minimum, 1 MB average, and a maximum of 8 bytes under 10 MB.
+	 * @param consumer receives each chunk as it is cut
+	 */
+	public Chunker(Consumer<byte[]> consumer) {
+		this(DEFAULT_MIN_SIZE, DEFAULT_AVG_SIZE, DEFAULT_MAX_SIZE, consumer);
+	}
+
+	/**
+	 * Create a chunker.
+	 * @param minSize the smallest chunk cut before the end of input
+	 * @param avgSize the target chunk size, a power of two
+	 * @param maxSize the largest chunk
+	 * @param consumer receives each chunk as it is cut
+	 */
+	public Chunker(int minSize, int avgSize, int maxSize, Consumer<byte[]> consumer) {
+		if (consumer == null) throw new NullPointerException("Null consumer");
+		if (Integer.bitCount(avgSize) != 1 || avgSize < 64) throw new IllegalArgumentException("Average size must be a power of two of at least 64");
+		if (minSize < 0 || minSize > avgSize || avgSize > maxSize) throw new IllegalArgumentException("Sizes must satisfy 0 <= min <= avg <= max");
+		this.minSize = minSize;
+		this.avgSize = avgSize;
+		this.maxSize = maxSize;
+		this.consumer = consumer;
+		//The high bits of a Gear hash depend on the most bytes, so the masks take bits from the top
+		int bits = Integer.numberOfTrailingZeros(avgSize);
+		maskS = -1L << (64 - (bits + 2));
+		maskL = -1L << (64 - (bits - 2));
+		chunk = new byte[Math.min(maxSize, 65536)];
+	}
+
+	/**
+	 * Feed bytes to the chunker.
+	 * @param b the array holding the data
+	 * @param off the offset of the data
+	 * @param len the length of the data
+	 */
+	public void update(byte[] b, int off, int len) {
+		if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+		int end = off + len;
+		while (off < end) {
+			int to = off + Math.min(end - off, maxSize - length);
+			int cut = scan(b, off, to);
+			int stop = cut < 0 ? to : cut;
+			append(b, off, stop - off);
+			off = stop;
+			if (cut >= 0 || length == maxSize) emit();
+		}
+	}
+
+	/**
+	 * Feed the remaining bytes of a buffer to the chunker. The buffer's position is advanced to its limit.
+	 * @param buf the data
+	 */
+	public void update(ByteBuffer buf) {
+		if (buf.hasArray()) {
+			update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			buf.position(buf.limit());
+		} else {
+			byte[] tmp = new byte[Math.min(buf.remaining(), 65536)];
+			while (buf.hasRemaining()) {
+				int n = Math.min(buf.remaining(), tmp.length);
+				buf.get(tmp, 0, n);
+				update(tmp, 0, n);
+			}
+		}
+	}
+
+	/**
+	 * Pass on whatever is left as the last chunk. The chunker may be used again afterwards for new input.
+	 */
+	public void end() {
+		if (length > 0) emit();
+	}
+
+	/*
+	 * Run the hash over b[from, to), which continues the current chunk. Returns the index just past a
+	 * boundary, or -1 if there is none in the span.
+	 */
+	private int scan(byte[] b, int from, int to) {
+		long h = hash;
+		int i = from;
+		int pos = length;
+		if (pos < minSize) {
+			int skip = Math.min(to - i, minSize - pos);
+			i += skip;
+			pos += skip;
+		}
+		int normalEnd = i + Math.max(0, Math.min(to - i, avgSize - pos));
+		for (; i < normalEnd; i++) {
+			h = (h << 1) + GEAR[b[i] & 0xFF];
+			if ((h & maskS) == 0) return i + 1;
+		}
+		for (; i < to; i++) {
+			h = (h << 1) + GEAR[b[i] & 0xFF];
+			if ((h & maskL) == 0) return i + 1;
+		}
+		hash = h;
+		return -1;
+	}
+
+	private void append(byte[] b, int off, int len) {
+		if (length + len > chunk.length) {
+			chunk = Arrays.copyOf(chunk, (int) Math.min(maxSize, Math.max(2L*chunk.length, (long) length + len)));
+		}
+		System.arraycopy(b, off, chunk, length, len);
+		length += len;
+	}
+
+	private void emit() {
+		consumer.accept(Arrays.copyOf(chunk, length));
+		length = 0;
+		hash = 0;
+	}
+}
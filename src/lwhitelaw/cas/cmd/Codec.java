@@ -0,0 +1,44 @@
+package lwhitelaw.cas.cmd;
+
+import lwhitelaw.cas.Hash;
+
+/**
+ * A compression method for blob data. Each codec has an id recorded in the blobs it writes, so ids must never
+ * be reused or changed once blobs using them may exist. Codecs are stateless from the caller's point of view and
+ * safe to use from many threads at once. See {@link Codecs} for the known codecs.
+ *
+ */
+public interface Codec {
+	/**
+	 * Return the id recorded for this codec in the blob format.
+	 * @return the id, from 0 to 255
+	 */
+	int id();
+	/**
+	 * Return the name used to choose this codec, as with -Dcas.codec.
+	 * @return the name
+	 */
+	String name();
+	/**
+	 * Return the hash of the dictionary this codec compresses against, which blobs record so that they can be
+	 * decompressed. The default returns null, for codecs without one.
+	 * @return the dictionary hash, or null
+	 */
+	default Hash dictionary() {
+		return null;
+	}
+	/**
+	 * Compress data.
+	 * @param data the data
+	 * @return the compressed data
+	 */
+	byte[] compress(byte[] data);
+	/**
+	 * Decompress data compressed by this codec.
+	 * @param cdata the compressed data
+	 * @param rawLength the length of the data when decompressed, or -1 if it wasn't recorded
+	 * @return the data
+	 * @throws BadParseException if the compressed data is corrupt or doesn't decompress to rawLength bytes
+	 */
+	byte[] decompress(byte[] cdata, int rawLength) throws BadParseException;
+}
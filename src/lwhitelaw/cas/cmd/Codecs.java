@@ -0,0 +1,85 @@
+package lwhitelaw.cas.cmd;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import lwhitelaw.cas.Hash;
+
+/**
+ * The codecs blobs can be written with. The codec for new blobs is chosen with the cas.codec system property,
+ * and defaults to DEFLATE. Codecs with a dictionary are looked up by the dictionary's hash once it has been loaded
+ * with {@link #withDictionary(Hash, byte[])}.
+ *
+ */
+public final class Codecs {
+	public static final Codec RAW = new RawCodec();
+	public static final Codec DEFLATE = new DeflateCodec();
+	public static final Codec LZ4 = new LZ4Codec();
+	private static final Codec[] ALL = {RAW, DEFLATE, LZ4};
+	private static final Codec DEFAULT = fromProperty();
+	private static final Map<Hash,Codec> DICTIONARIES = new ConcurrentHashMap<>();
+
+	private Codecs() {}
+
+	private static Codec fromProperty() {
+		String name = System.getProperty("cas.codec");
+		if (name == null) return DEFLATE;
+		Codec codec = forName(name);
+		if (codec == null) {
+			System.err.printf("warning: unknown codec %s, using %s\n", name, DEFLATE.name());
+			return DEFLATE;
+		}
+		return codec;
+	}
+
+	/**
+	 * Return the codec for new blobs.
+	 * @return the default codec
+	 */
+	public static Codec getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Look up a codec by the id recorded in a blob.
+	 * @param id the id
+	 * @return the codec, or null if there is none with that id
+	 */
+	public static Codec forId(int id) {
+		for (Codec c : ALL) {
+			if (c.id() == id) return c;
+		}
+		return null;
+	}
+
+	/**
+	 * Return the DEFLATE codec for a dictionary, creating it the first time.
+	 * @param hash the hash of the dictionary object
+	 * @param dictionary the dictionary
+	 * @return the codec
+	 */
+	public static Codec withDictionary(Hash hash, byte[] dictionary) {
+		return DICTIONARIES.computeIfAbsent(hash, (h) -> new DeflateCodec(h, dictionary));
+	}
+
+	/**
+	 * Look up the codec for a dictionary already loaded with {@link #withDictionary(Hash, byte[])}.
+	 * @param hash the hash of the dictionary object
+	 * @return the codec, or null if the dictionary hasn't been loaded
+	 */
+	public static Codec forDictionary(Hash hash) {
+		return DICTIONARIES.get(hash);
+	}
+
+	/**
+	 * Look up a codec by name, in any case.
+	 * @param name the name
+	 * @return the codec, or null if there is none with that name
+	 */
+	public static Codec forName(String name) {
+		for (Codec c : ALL) {
+			if (c.name().equalsIgnoreCase(name)) return c;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,134 @@
+package lwhitelaw.cas.cmd;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import lwhitelaw.cas.Hash;
+
+/**
+ * DEFLATE at level 1 in a zlib wrapper, the original blob compression. Each thread keeps a deflater, an inflater
+ * and a scratch buffer, reused for every blob so that no native zlib memory is allocated per chunk. They live as
+ * long as their thread, so native memory is bounded by the number of threads. Buffers past a few megabytes aren't
+ * kept, so unusually large blobs don't pin memory.
+ * 
+ * Given a dictionary, data is compressed as if it followed the dictionary, so that a small blob can refer back
+ * to common text instead of starting from an empty window. Only the last 32 KB of a dictionary can be used.
+ *
+ */
+final class DeflateCodec implements Codec {
+	static final int ID = 1;
+	static final int DICTIONARY_ID = 3;
+	private static final int MAX_RETAINED = 4*1048576;
+	private static final ThreadLocal<State> STATES = ThreadLocal.withInitial(State::new);
+	private final Hash dictionaryHash;
+	private final byte[] dictionary;
+
+	DeflateCodec() {
+		this.dictionaryHash = null;
+		this.dictionary = null;
+	}
+
+	DeflateCodec(Hash dictionaryHash, byte[] dictionary) {
+		if (dictionaryHash == null || dictionary == null) throw new NullPointerException();
+		this.dictionaryHash = dictionaryHash;
+		this.dictionary = dictionary.clone();
+	}
+
+	@Override
+	public int id() {
+		return dictionary == null ? ID : DICTIONARY_ID;
+	}
+
+	@Override
+	public String name() {
+		return dictionary == null ? "deflate" : "deflate-dict";
+	}
+
+	@Override
+	public Hash dictionary() {
+		return dictionaryHash;
+	}
+
+	@Override
+	public byte[] compress(byte[] data) {
+		State state = STATES.get();
+		Deflater def = state.deflater;
+		def.reset();
+		if (dictionary != null) def.setDictionary(dictionary);
+		def.setInput(data);
+		def.finish();
+		//zlib's compressBound; deflate output never exceeds it, so one call normally does
+		byte[] out = state.buffer(data.length + (data.length >>> 12) + (data.length >>> 14) + (data.length >>> 25) + 13);
+		int n = 0;
+		while (!def.finished()) {
+			if (n == out.length) out = state.grow(out);
+			n += def.deflate(out, n, out.length - n);
+		}
+		return Arrays.copyOf(out, n);
+	}
+
+	@Override
+	public byte[] decompress(byte[] cdata, int rawLength) throws BadParseException {
+		State state = STATES.get();
+		Inflater inf = state.inflater;
+		inf.reset();
+		inf.setInput(cdata);
+		//DEFLATE can't expand more than 1032 times, so don't allocate for a corrupt length
+		if (rawLength > 1032L*cdata.length + 64) throw new BadParseException();
+		//With the length known, inflate straight into the result
+		byte[] out = rawLength >= 0 ? new byte[rawLength] : state.buffer(cdata.length*2);
+		int n = 0;
+		try {
+			while (!inf.finished()) {
+				int k = inf.inflate(out, n, out.length - n);
+				n += k;
+				if (k == 0 && !inf.finished()) {
+					if (inf.needsDictionary()) {
+						//Throws if the stream names a different dictionary
+						if (dictionary == null) throw new BadParseException();
+						inf.setDictionary(dictionary);
+						continue;
+					}
+					if (inf.needsInput()) throw new BadParseException();
+					//Out of room; more than the recorded length is corrupt
+					if (rawLength >= 0) throw new BadParseException();
+					out = state.grow(out);
+				}
+			}
+		} catch (DataFormatException | IllegalArgumentException e) {
+			throw new BadParseException();
+		}
+		if (rawLength >= 0) {
+			if (n != rawLength) throw new BadParseException();
+			return out;
+		}
+		return Arrays.copyOf(out, n);
+	}
+
+	private static final class State {
+		final Deflater deflater = new Deflater(1);
+		final Inflater inflater = new Inflater();
+		private byte[] buffer = new byte[65536];
+
+		/*
+		 * Return a scratch buffer of at least the given size.
+		 */
+		byte[] buffer(int size) {
+			if (buffer.length >= size) return buffer;
+			byte[] b = new byte[Math.max(size, 65536)];
+			if (b.length <= MAX_RETAINED) buffer = b;
+			return b;
+		}
+
+		/*
+		 * Return a buffer twice as big holding the contents of a full one.
+		 */
+		byte[] grow(byte[] full) {
+			byte[] b = Arrays.copyOf(full, (int) Math.min(Integer.MAX_VALUE - 8, 2L*full.length));
+			if (b.length <= MAX_RETAINED) buffer = b;
+			return b;
+		}
+	}
+}
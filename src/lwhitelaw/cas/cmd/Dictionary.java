@@ -0,0 +1,47 @@
+package lwhitelaw.cas.cmd;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Dictionary {
+ * 	Magic "DICT"
+ * 	int dataLength
+ * 	byte[dataLength] data
+ * }
+ * 
+ * Text that small blobs are compressed against. Blobs refer to it by hash.
+ */
+public class Dictionary extends CASObject {
+	private static final byte[] MAGIC = "DICT".getBytes();
+	private byte[] data;
+
+	@Override
+	public int encodedLength() {
+		return 8 + data.length;
+	}
+
+	@Override
+	public void encode(ByteBuffer buf) {
+		buf.put(MAGIC);
+		buf.putInt(data.length);
+		buf.put(data);
+	}
+
+	@Override
+	protected void decode(ByteBuffer buf) throws BadParseException {
+		expectMagic(buf, MAGIC);
+		int datasize = buf.getInt();
+		if (datasize < 0 || datasize > buf.remaining()) throw new BadParseException();
+		this.data = new byte[datasize];
+		buf.get(this.data);
+	}
+	
+	public byte[] getData() {
+		return data;
+	}
+	
+	public void setData(byte[] data) {
+		if (data == null) throw new NullPointerException();
+		this.data = data;
+	}
+}
@@ -0,0 +1,109 @@
+package lwhitelaw.cas.cmd;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds a compression dictionary from sample data by picking the segments whose short substrings occur in the
+ * most samples, in the manner of zstd's COVER trainer. The samples are split into one epoch per segment the
+ * dictionary can hold, and the best segment of each epoch is taken. Substrings a segment covers stop counting
+ * towards later segments, so the dictionary doesn't fill up with copies of the same text. The best segments go
+ * last, where DEFLATE reaches them with the shortest distances.
+ *
+ */
+final class DictionaryTrainer {
+	//Length of the substrings counted
+	private static final int DMER = 6;
+	private static final int SEGMENT = 128;
+	private static final int TABLE_BITS = 20;
+
+	private DictionaryTrainer() {}
+
+	/**
+	 * Train a dictionary.
+	 * @param samples the samples, such as the contents of small files
+	 * @param size the largest size of dictionary to return
+	 * @return the dictionary, which is empty if there were no samples
+	 */
+	static byte[] train(List<byte[]> samples, int size) {
+		int total = 0;
+		for (byte[] s : samples) total += s.length;
+		byte[] all = new byte[total];
+		int pos = 0;
+		for (byte[] s : samples) {
+			System.arraycopy(s, 0, all, pos, s.length);
+			pos += s.length;
+		}
+		if (total <= size) return all;
+		//Count the samples each substring occurs in, not its occurrences, so one repetitive sample can't dominate
+		int[] hashes = new int[total];
+		int[] freq = new int[1 << TABLE_BITS];
+		int[] seenIn = new int[1 << TABLE_BITS];
+		pos = 0;
+		for (int s = 0; s < samples.size(); s++) {
+			int end = pos + samples.get(s).length;
+			for (int i = pos; i < end; i++) {
+				if (i + DMER > end) {
+					hashes[i] = -1;
+					continue;
+				}
+				int h = hash(all, i);
+				hashes[i] = h;
+				if (seenIn[h] != s + 1) {
+					seenIn[h] = s + 1;
+					freq[h]++;
+				}
+			}
+			pos = end;
+		}
+		//Substrings found in only one sample don't help compress any other
+		for (int h = 0; h < freq.length; h++) {
+			if (freq[h] < 2) freq[h] = 0;
+		}
+		int segments = Math.max(1, size / SEGMENT);
+		int epoch = Math.max(SEGMENT, total / segments);
+		List<long[]> chosen = new ArrayList<>();
+		for (int start = 0; start + SEGMENT <= total; start += epoch) {
+			int end = Math.min(total, start + epoch);
+			//Slide a window over the epoch, keeping the score of substrings starting in it
+			long score = 0;
+			for (int i = start; i < start + SEGMENT; i++) score += score(freq, hashes[i]);
+			long best = score;
+			int bestAt = start;
+			for (int i = start + SEGMENT; i < end; i++) {
+				score += score(freq, hashes[i]) - score(freq, hashes[i - SEGMENT]);
+				if (score > best) {
+					best = score;
+					bestAt = i - SEGMENT + 1;
+				}
+			}
+			if (best == 0) continue;
+			chosen.add(new long[] {best, bestAt});
+			for (int i = bestAt; i < bestAt + SEGMENT; i++) {
+				if (hashes[i] >= 0) freq[hashes[i]] = 0;
+			}
+		}
+		chosen.sort((a, b) -> Long.compare(a[0], b[0]));
+		int n = Math.min(size, chosen.size() * SEGMENT);
+		byte[] dict = new byte[n];
+		//Fill from the end with the best segments first, dropping the worst if they don't fit
+		int at = n;
+		for (int c = chosen.size() - 1; c >= 0 && at > 0; c--) {
+			int len = Math.min(SEGMENT, at);
+			int from = (int) chosen.get(c)[1] + SEGMENT - len;
+			at -= len;
+			System.arraycopy(all, from, dict, at, len);
+		}
+		return dict;
+	}
+
+	private static int score(int[] freq, int h) {
+		return h < 0 ? 0 : freq[h];
+	}
+
+	private static int hash(byte[] b, int i) {
+		long v = 0;
+		for (int k = 0; k < DMER; k++) v = v << 8 | (b[i+k] & 0xFF);
+		return (int) ((v * 0x9E3779B97F4A7C15L) >>> (64 - TABLE_BITS));
+	}
+}
@@ -1,13 +1,9 @@
 package lwhitelaw.cas.cmd;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import lwhitelaw.cas.Hash;
 
@@ -22,100 +18,98 @@ import lwhitelaw.cas.Hash;
  * 	unsigned byte hashlength
  * 	byte[hashlength] hash 
  * }
+ * 
+ * A parsed File keeps the hash list encoded in the buffer it came from until the array is asked for, so walking
+ * its hashes once doesn't build the array.
  */
 public class File extends CASObject {
+	private static final byte[] MAGIC = "FILE".getBytes();
 	private Hash[] hashes;
-	@Override
-	public byte[] getByteArray() {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(65536);
-		DataOutputStream dos = new DataOutputStream(baos);
-		try {
-			byte[] magic = "FILE".getBytes();
-			dos.write(magic);
-			dos.writeInt(hashes.length);
-			for (int i = 0; i < hashes.length; i++) {
-				Hash h = hashes[i];
-				byte[] hashcontents = h.hashContents();
-				dos.writeByte(hashcontents.length & 0xFF);
-				dos.write(hashcontents);
-			}
-			dos.close();
-			return baos.toByteArray();
-		} catch (IOException ex) {
-			//Unlikely to ever happen
-			throw new AssertionError("Should not happen");
-		}
-	}
+	//The encoded hash list, when parsed and not yet decoded into hashes
+	private ByteBuffer encoded;
+	private int count;
 
 	@Override
-	public void parseByteArray(byte[] data) throws BadParseException {
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-		try {
-			//Magic value
-			byte[] magic = "FILE".getBytes();
-			byte[] start = new byte[4];
-			dis.readFully(start);
-			if (!Arrays.equals(magic, start)) throw new BadParseException();
-			//Hash list size
-			int hlistsize = dis.readInt();
-			if (hlistsize < 0) throw new BadParseException();
-			hashes = new Hash[hlistsize];
-			//hashes
-			for (int i = 0; i < hlistsize; i++) {
-				int hashsize = dis.readUnsignedByte();
-				byte[] hashdata = new byte[hashsize];
-				dis.readFully(hashdata);
-				hashes[i] = new Hash(hashdata);
-			}
-			//Should be no more data here
-			if (dis.read() != -1) throw new BadParseException();
-			dis.close();
-		} catch (IOException ex) {
-			//thrown on EOF. otherwise cannot fail on data already resident in memory.
-			throw new BadParseException();
-		}
+	public int encodedLength() {
+		if (hashes == null) return 8 + encoded.remaining();
+		int n = 8;
+		for (Hash h : hashes) n += hashLength(h);
+		return n;
 	}
-	
+
 	@Override
-	public void writeData(OutputStream os) throws IOException {
-		DataOutputStream dos = new DataOutputStream(os);
-		byte[] magic = "FILE".getBytes();
-		dos.write(magic);
-		dos.writeInt(hashes.length);
-		for (int i = 0; i < hashes.length; i++) {
-			Hash h = hashes[i];
-			byte[] hashcontents = h.hashContents();
-			dos.writeByte(hashcontents.length & 0xFF);
-			dos.write(hashcontents);
+	public void encode(ByteBuffer buf) {
+		buf.put(MAGIC);
+		buf.putInt(count);
+		if (hashes == null) {
+			buf.put(encoded.duplicate());
+		} else {
+			for (Hash h : hashes) putHash(buf, h);
 		}
-		dos.close();
 	}
 
 	@Override
-	public void readData(InputStream is) throws IOException, BadParseException {
-		DataInputStream dis = new DataInputStream(is);
-		//Magic value
-		byte[] magic = "FILE".getBytes();
-		byte[] start = new byte[4];
-		dis.readFully(start);
-		if (!Arrays.equals(magic, start)) throw new BadParseException();
+	protected void decode(ByteBuffer buf) throws BadParseException {
+		expectMagic(buf, MAGIC);
 		//Hash list size
-		int hlistsize = dis.readInt();
+		int hlistsize = buf.getInt();
 		if (hlistsize < 0) throw new BadParseException();
-		hashes = new Hash[hlistsize];
-		//hashes
+		//Check the hash lengths lie within the data, without decoding the hashes
+		int start = buf.position();
 		for (int i = 0; i < hlistsize; i++) {
-			int hashsize = dis.readUnsignedByte();
-			byte[] hashdata = new byte[hashsize];
-			dis.readFully(hashdata);
-			hashes[i] = new Hash(hashdata);
+			int hashsize = buf.get() & 0xFF;
+			buf.position(buf.position() + hashsize);
 		}
-		//Should be no more data here
-		if (dis.read() != -1) throw new BadParseException();
-		dis.close();
+		ByteBuffer list = buf.duplicate();
+		list.position(start);
+		list.limit(buf.position());
+		this.encoded = list.slice();
+		this.count = hlistsize;
+		this.hashes = null;
+	}
+	
+	/**
+	 * Return the number of hashes.
+	 * @return the number of hashes
+	 */
+	public int getHashCount() {
+		return count;
+	}
+	
+	/**
+	 * Return the hashes in order, decoded from the encoding on the fly if the File was parsed.
+	 * @return the hashes
+	 */
+	public Iterable<Hash> hashes() {
+		if (hashes != null) return Arrays.asList(hashes);
+		ByteBuffer list = encoded;
+		int n = count;
+		return () -> new Iterator<Hash>() {
+			private final ByteBuffer buf = list.duplicate();
+			private int i = 0;
+			
+			@Override
+			public boolean hasNext() {
+				return i < n;
+			}
+			
+			@Override
+			public Hash next() {
+				if (i >= n) throw new NoSuchElementException();
+				i++;
+				return getHash(buf);
+			}
+		};
 	}
 	
 	public Hash[] getHashes() {
+		if (hashes == null) {
+			Hash[] decoded = new Hash[count];
+			ByteBuffer buf = encoded.duplicate();
+			for (int i = 0; i < count; i++) decoded[i] = getHash(buf);
+			hashes = decoded;
+			encoded = null;
+		}
 		return hashes;
 	}
 	
@@ -123,5 +117,7 @@ public class File extends CASObject {
 		if (data == null) throw new NullPointerException();
 		for (Hash h : data) if (h == null) throw new NullPointerException();
 		this.hashes = data;
+		this.count = data.length;
+		this.encoded = null;
 	}
 }
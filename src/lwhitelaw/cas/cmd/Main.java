@@ -1,33 +1,47 @@
 package lwhitelaw.cas.cmd;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.function.Consumer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
 
 import lwhitelaw.cas.CAS;
 import lwhitelaw.cas.Hash;
+import lwhitelaw.cas.Hash256Set;
+import lwhitelaw.cas.HashOutputStream;
+import lwhitelaw.cas.Hasher;
 import lwhitelaw.cas.cmd.Tree.DirEnt;
 import lwhitelaw.cas.cmd.Tree.DirEnt.Type;
+import lwhitelaw.cas.impl.CachingCAS;
 import lwhitelaw.cas.impl.FileSystemCAS;
+import lwhitelaw.cas.impl.Hashers;
 import lwhitelaw.cas.impl.NetworkCAS;
-import lwhitelaw.cas.impl.SHA3Hasher;
 
 public class Main {
 	public static void main(String[] args) {
@@ -54,22 +68,39 @@ public class Main {
 		case "snapshot":
 			snapshot(rest(args));
 			break;
+		case "commit":
+			commit(rest(args));
+			break;
 		case "check":
 			check(rest(args));
 			break;
+		case "init":
+			init(rest(args));
+			break;
+		case "train-dict":
+			trainDict(rest(args));
+			break;
 		default:
 			System.out.println("Fancy commands");
 			System.out.println("show <hash> - show information about object");
-			System.out.println("put-path <path> - insert file or directory and get hash pointing to it");
+			System.out.println("put-path <path> [--incremental] - insert file or directory and get hash pointing to it");
+			System.out.println(" -with --incremental, files unchanged since the last incremental put are not read again");
+			System.out.println(" -file data is compressed with -Dcas.codec=(deflate|lz4), deflate by default");
+			System.out.println(" -data that doesn't compress is stored raw, and compression is shown for each file");
 			System.out.println("get-path <hash> <path> - retrieve file or directory hash and store at path in filesystem");
 			System.out.println("modify-tree <root-tree> <entry-path> (file <entry-file>|tree <entry-tree>|none)");
 			System.out.println(" -using root-tree as the root, navigate to the entry at entry-path and return new root where");
 			System.out.println("  entry-path is replaced with entry-file, entry-tree, or removed (none)");
 			System.out.println("snapshot <root-tree> [<predecessor-snapshot>] - store history of trees with the current time");
+			System.out.println("commit <path> [<predecessor-snapshot>] - insert directory and store it as a snapshot with the current time");
+			System.out.println(" -unchanged files are not read again, and directories unchanged since the predecessor are not rewritten");
 			System.out.println("check <hash> - check integrity of the object graph");
 			System.out.println();
 			System.out.println("Raw I/O commands");
-			System.out.println("put-raw <path> - insert raw binary from path (must fit into memory)");
+			System.out.println("put-raw <path> - insert raw binary from path");
+			System.out.println("init (sha3-256|blake3) - choose the hash algorithm for a new store");
+			System.out.println(" -stores without a chosen algorithm use SHA3-256");
+			System.out.println("train-dict - train a dictionary from small blobs in the store and compress small chunks against it");
 			System.out.println("get-raw <hash> <path> - retrieve raw binary from hash and store at path");
 			System.out.println("Objects are retrieved and stored from a server at 127.0.0.1:32573");
 			break;
@@ -90,23 +121,23 @@ public class Main {
 		}
 		Hash hash = verifyHash(args[0],cas);
 		if (hash == null) return;
-		byte[] data = cas.read(hash);
+		ByteBuffer data = cas.readBuffer(hash);
 		if (data == null) {
 			System.err.println("error: data does not exist for given hash. Operation halts.");
 		} else {
 			boolean success = false;
 			try {
 				File file = new File();
-				file.parseByteArray(data);
+				file.parseBuffer(data);
 				System.out.println("File");
-				for (Hash h : file.getHashes()) {
+				for (Hash h : file.hashes()) {
 					System.out.println(h);
 				}
 				success = true;
 			} catch (BadParseException ex) {}
 			try {
 				Tree tree = new Tree();
-				tree.parseByteArray(data);
+				tree.parseBuffer(data);
 				System.out.println("Tree");
 				List<DirEnt> dirents = new ArrayList<>(tree.getEntries());
 				dirents.sort((a,b) -> {
@@ -119,14 +150,25 @@ public class Main {
 			} catch (BadParseException ex) {}
 			try {
 				Blob blob = new Blob();
-				blob.parseByteArray(data);
-				System.out.println("Blob");
-				System.out.println(blob.getByteArray().length + " bytes");
+				blob.parseBuffer(data);
+				if (blob.getDictionary() == null) {
+					System.out.println("Blob (" + blob.getCodec().name() + ")");
+				} else {
+					System.out.println("Blob (deflate-dict " + blob.getDictionary().toString() + ")");
+				}
+				System.out.println(blob.encodedLength() + " bytes");
+				success = true;
+			} catch (BadParseException ex) {}
+			try {
+				Dictionary dictionary = new Dictionary();
+				dictionary.parseBuffer(data);
+				System.out.println("Dictionary");
+				System.out.println(dictionary.getData().length + " bytes");
 				success = true;
 			} catch (BadParseException ex) {}
 			try {
 				Snapshot snapshot = new Snapshot();
-				snapshot.parseByteArray(data);
+				snapshot.parseBuffer(data);
 				System.out.println("Snapshot");
 				System.out.println("Chain (top entry is this snapshot)");
 				printSnapshot(cas, hash);
@@ -156,7 +198,7 @@ public class Main {
 		}
 		Hash hash = verifyHash(args[0],cas);
 		if (hash == null) return;
-		if (!checkObject(hash, cas, new HashSet<>())) {
+		if (!checkObject(hash, cas, new Hash256Set())) {
 			System.err.println("Error found!");
 		} else {
 			System.out.println("All OK");
@@ -181,21 +223,24 @@ public class Main {
 			System.err.println("error: cannot start CAS. Operation halts.");
 			return;
 		}
-		byte[] data;
-		attemptwrite: {
+		//Not try-with-resources: closing stores the block, which must not happen after a failed copy
+		try {
+			HashOutputStream out = cas.writeStream();
 			try {
-				data = Files.readAllBytes(path);
+				Files.copy(path, out);
 			} catch (IOException e) {
-				System.err.println("error: IO error occurred on read. Detailed error below. Operation halts.");
-				e.printStackTrace();
-				break attemptwrite;
-			}
-			Hash hash = cas.write(data);
-			if (hash == null) {
-				System.err.println("error: CAS write failed. Operation halts.");
-			} else {
-				System.out.println(hash.toString());
+				try {
+					out.abort();
+				} catch (IOException e2) {
+					e.addSuppressed(e2);
+				}
+				throw e;
 			}
+			out.close();
+			System.out.println(out.getHash().toString());
+		} catch (IOException e) {
+			System.err.println("error: IO error occurred on write. Detailed error below. Operation halts.");
+			e.printStackTrace();
 		}
 		try {
 			cas.close();
@@ -219,12 +264,11 @@ public class Main {
 		if (hash == null) return;
 		Path path = verifyPath(args[1]);
 		if (path == null) return;
-		byte[] data = cas.read(hash);
-		if (data == null) {
+		if (!cas.exists(hash)) {
 			System.err.println("error: data does not exist for given hash. Operation halts.");
 		} else {
-			try {
-				Files.write(path, data);
+			try (InputStream in = cas.readStream(hash)) {
+				Files.copy(in, path, StandardCopyOption.REPLACE_EXISTING);
 			} catch (IOException e) {
 				System.err.println("error: IO error occurred. Detailed error below. Operation halts.");
 				e.printStackTrace();
@@ -245,20 +289,29 @@ public class Main {
 		}
 		Path path = verifyPath(args[0]);
 		if (path == null) return;
+		StatCache statCache = null;
+		if (args.length >= 2) {
+			if (!args[1].equals("--incremental")) {
+				System.err.println("error: unknown option " + args[1]);
+				return;
+			}
+			statCache = StatCache.load(STAT_CACHE);
+		}
 		CAS cas = getCAS();
 		if (cas == null) {
 			System.err.println("error: cannot start CAS. Operation halts.");
 			return;
 		}
+		Hash h = null;
 		if (Files.isDirectory(path)) {
-			Hash h = writeDir(cas, path);
+			h = writeDir(cas, path, statCache);
 			if (h == null) {
 				System.err.println("error: writing directory failed. Operation halts.");
 			} else {
 				System.out.println(h.toString());
 			}
 		} else if (Files.isRegularFile(path)) {
-			Hash h = writeFile(cas, path);
+			h = writeFile(cas, path, statCache);
 			if (h == null) {
 				System.err.println("error: writing file failed. Operation halts.");
 			} else {
@@ -272,6 +325,16 @@ public class Main {
 		} catch (Exception e) {
 			System.err.println("error: IO error while closing CAS. Detailed error below. The operation may have failed.");
 			e.printStackTrace();
+			return;
+		}
+		//Only once the CAS has everything the cache points to
+		if (statCache != null && h != null) {
+			try {
+				statCache.save(path);
+			} catch (IOException e) {
+				System.err.println("warning: cannot save stat cache. Detailed error below. The next run will read every file.");
+				e.printStackTrace();
+			}
 		}
 	}
 	
@@ -290,21 +353,21 @@ public class Main {
 		Path path = verifyPath(args[1]);
 		if (path == null) return;
 		//Read data into memory
-		byte[] data = cas.read(hash);
+		ByteBuffer data = cas.readBuffer(hash);
 		if (data == null) {
 			System.err.println("error: data does not exist for given hash. Operation halts.");
 		} else {
 			boolean success = false;
 			try {
 				File file = new File();
-				file.parseByteArray(data);
+				file.parseBuffer(data);
 				//Read out file
 				readFile(cas, hash, path);
 				success = true;
 			} catch (BadParseException ex) {}
 			try {
 				Tree tree = new Tree();
-				tree.parseByteArray(data);
+				tree.parseBuffer(data);
 				//Read out tree
 				readDir(cas, hash, path);
 				success = true;
@@ -410,81 +473,614 @@ public class Main {
 		}
 	}
 	
+	private static void commit(String[] args) {
+		if (args.length < 1) {
+			System.err.println("error: not enough arguments");
+			return;
+		}
+		Path path = verifyPath(args[0]);
+		if (path == null) return;
+		if (!Files.isDirectory(path)) {
+			System.err.println("error: not a directory. Operation halts.");
+			return;
+		}
+		CAS cas = getCAS();
+		if (cas == null) {
+			System.err.println("error: cannot start CAS. Operation halts.");
+			return;
+		}
+		Hash pred = null;
+		Hash predTree = null;
+		if (args.length >= 2) {
+			pred = verifyHash(args[1],cas);
+			if (pred == null) return;
+			Snapshot predSnapshot = readSnapshotObject(new Snapshot(), cas, pred);
+			if (predSnapshot == null) return;
+			predTree = predSnapshot.getTree();
+		}
+		StatCache statCache = StatCache.load(STAT_CACHE);
+		Hash h = null;
+		Hash root = TREE_POOL.invoke(new DirWriter(cas, path, statCache, predTree));
+		if (root == null) {
+			System.err.println("error: writing directory failed. Operation halts.");
+		} else {
+			Snapshot snapshot = new Snapshot();
+			snapshot.setTree(root);
+			snapshot.setPredecessor(pred);
+			snapshot.setTime(System.currentTimeMillis());
+			h = cas.write(snapshot.getByteArray());
+			if (h != null) {
+				System.out.println(h.toString());
+			} else {
+				System.err.println("error: writing snapshot failed. Operation halts.");
+			}
+		}
+		try {
+			cas.close();
+		} catch (Exception e) {
+			System.err.println("error: IO error while closing CAS. Detailed error below. The operation may have failed.");
+			e.printStackTrace();
+			return;
+		}
+		if (h != null) {
+			try {
+				statCache.save(path);
+			} catch (IOException e) {
+				System.err.println("warning: cannot save stat cache. Detailed error below. The next run will read every file.");
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private static void init(String[] args) {
+		if (args.length < 1) {
+			System.err.println("error: not enough arguments");
+			return;
+		}
+		String algorithm;
+		if (args[0].equalsIgnoreCase(Hashers.SHA3_256)) {
+			algorithm = Hashers.SHA3_256;
+		} else if (args[0].equalsIgnoreCase(Hashers.BLAKE3)) {
+			algorithm = Hashers.BLAKE3;
+		} else {
+			System.err.println("error: unknown hash algorithm " + args[0] + ". Operation halts.");
+			return;
+		}
+		try {
+			if (Files.exists(CAS_ROOT.resolve(Hashers.MARKER))) {
+				System.err.println("error: store already uses " + Hashers.readMarker(CAS_ROOT) + ". Operation halts.");
+				return;
+			}
+			if (Files.isDirectory(CAS_ROOT)) {
+				try (DirectoryStream<Path> ds = Files.newDirectoryStream(CAS_ROOT)) {
+					if (ds.iterator().hasNext() && !algorithm.equals(Hashers.SHA3_256)) {
+						System.err.println("error: store already holds SHA3-256 blocks. Operation halts.");
+						return;
+					}
+				}
+			}
+			Hashers.writeMarker(CAS_ROOT, algorithm);
+		} catch (IOException e) {
+			System.err.println("error: IO error while initializing store. Detailed error below. Operation halts.");
+			e.printStackTrace();
+			return;
+		}
+		System.out.println("Store uses " + algorithm);
+	}
+	
+	private static void trainDict(String[] args) {
+		CAS cas = getCAS();
+		if (cas == null) {
+			System.err.println("error: cannot start CAS. Operation halts.");
+			return;
+		}
+		//Hashes come out in no particular order, so the first blobs found are a fair sample
+		List<byte[]> samples = new ArrayList<>();
+		long[] sampleBytes = {0};
+		boolean listed = true;
+		try {
+			cas.forEachHash((h) -> {
+				if (sampleBytes[0] >= TRAIN_SAMPLE_BYTES) return;
+				ByteBuffer data = cas.readBuffer(h);
+				if (data == null) return;
+				Blob blob = new Blob();
+				try {
+					blob.parseBuffer(data);
+				} catch (BadParseException ex) {
+					return;
+				}
+				if (blob.getCodec() == null) return;
+				byte[] chunk;
+				try {
+					chunk = blob.getData();
+				} catch (AssertionError ex) {
+					//Corrupt blob; check reports those, training just leaves it out
+					return;
+				}
+				if (chunk.length > DICTIONARY_MAX_CHUNK) return;
+				samples.add(chunk);
+				sampleBytes[0] += chunk.length;
+			});
+		} catch (UnsupportedOperationException | UncheckedIOException e) {
+			System.err.println("error: cannot list blocks in the store. Operation halts.");
+			listed = false;
+		}
+		Dictionary dictionary = null;
+		Hash h = null;
+		if (listed && samples.isEmpty()) {
+			System.err.println("error: no small blobs to train from. Operation halts.");
+		} else if (listed) {
+			dictionary = new Dictionary();
+			dictionary.setData(DictionaryTrainer.train(samples, DICTIONARY_SIZE));
+			h = cas.write(dictionary.getByteArray());
+			if (h == null) System.err.println("error: dictionary write failure. Operation halts.");
+		}
+		try {
+			cas.close();
+		} catch (Exception e) {
+			System.err.println("error: IO error while closing CAS. Detailed error below. The operation may have failed.");
+			e.printStackTrace();
+			return;
+		}
+		//Only once the CAS has the dictionary the marker points to
+		if (h == null) return;
+		try {
+			Path temp = Files.createTempFile(CAS_ROOT, "tmp", ".part");
+			try {
+				Files.write(temp, (h.toString() + "\n").getBytes(StandardCharsets.UTF_8));
+				Files.move(temp, CAS_ROOT.resolve(DICTIONARY_MARKER), StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		} catch (IOException e) {
+			System.err.println("error: IO error while recording dictionary. Detailed error below. Operation halts.");
+			e.printStackTrace();
+			return;
+		}
+		System.out.printf("Trained %d-byte dictionary from %d blobs, %d bytes\n",dictionary.getData().length,samples.size(),sampleBytes[0]);
+		System.out.println(h.toString());
+	}
+	
 	//MACHINERY//
-	static class SplitWriter {
-		private final int SIZE_10_MB = 10*1048576;
-		int hashmask = 0xFFFFF; //1 MB, play with this?
-		ByteArrayOutputStream currpartbuffer = getBuffer();
-		Consumer<byte[]> consumer;
-		int len = 0;
-		//byte[] hbuf = new byte[32]; //Play with this value
-		//Switch this to a proper ring buffer
-		RingBuffer buf = new RingBuffer(16);
+	private static final int WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+	//CPU-bound work: encoding and decoding blobs
+	private static final ExecutorService WORKERS = Executors.newFixedThreadPool(WORKER_COUNT, (r) -> {
+		Thread t = new Thread(r, "Blob worker");
+		t.setDaemon(true);
+		return t;
+	});
+	//Walking directory trees; larger than the core count because much of the time goes to file system waits
+	private static final ForkJoinPool TREE_POOL = new ForkJoinPool(Math.max(8, 2*WORKER_COUNT));
+	
+	static class SplitWriteFailException extends RuntimeException {}
+	
+	/*
+	 * Collects blocks into batches and writes each batch to the CAS on the worker pool, so batches are hashed
+	 * and stored concurrently. The hashes are put back in order at the end. Each block comes with permits
+	 * that are released once its batch has been written, or discarded.
+	 */
+	static class BatchWriter {
+		private static final int BATCH_BYTES = 16*1048576;
+		private static final int BATCH_BLOCKS = 256;
+		private final CAS cas;
+		private final Semaphore permits;
+		private final List<CompletableFuture<List<Hash>>> written = new ArrayList<>();
+		private List<byte[]> batch = new ArrayList<>();
+		private int batchBytes = 0;
+		private int batchPermits = 0;
+		private volatile boolean failed = false;
 		
-		public SplitWriter(Consumer<byte[]> consumer) {
-			this.consumer = consumer;
+		public BatchWriter(CAS cas, Semaphore permits) {
+			this.cas = cas;
+			this.permits = permits;
 		}
 		
-		void write(byte b) {
-			//System.arraycopy(hbuf, 1, hbuf, 0, hbuf.length-1);
-			buf.push(b);
-			currpartbuffer.write(b);
-			len++;
-			if (((hash() & hashmask) == 0) || (len == SIZE_10_MB-8)) {
-				//System.out.println("Writing block of size " + len);
-				buf.clear();
-				consumer.accept(currpartbuffer.toByteArray());
-				currpartbuffer = getBuffer();
-				len = 0;
+		void write(byte[] block, int blockPermits) {
+			batch.add(block);
+			batchBytes += block.length;
+			batchPermits += blockPermits;
+			if (batchBytes >= BATCH_BYTES || batch.size() >= BATCH_BLOCKS) {
+				flush();
 			}
 		}
 		
-		void end() {
-			if (len > 0) {
-				consumer.accept(currpartbuffer.toByteArray());
+		void flush() {
+			if (batch.isEmpty()) return;
+			List<byte[]> blocks = batch;
+			int held = batchPermits;
+			written.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					List<Hash> hashes = cas.writeAll(blocks);
+					if (hashes.contains(null)) failed = true;
+					return hashes;
+				} catch (RuntimeException ex) {
+					failed = true;
+					throw ex;
+				} finally {
+					permits.release(held);
+				}
+			}, WORKERS));
+			batch = new ArrayList<>();
+			batchBytes = 0;
+			batchPermits = 0;
+		}
+		
+		/*
+		 * Drop the blocks not yet flushed, releasing their permits.
+		 */
+		void discard() {
+			permits.release(batchPermits);
+			batch = new ArrayList<>();
+			batchBytes = 0;
+			batchPermits = 0;
+		}
+		
+		boolean failed() {
+			return failed;
+		}
+		
+		/*
+		 * Wait for every batch to be written and return the hashes in order.
+		 */
+		List<Hash> getHashes() {
+			List<Hash> hashes = new ArrayList<>();
+			for (CompletableFuture<List<Hash>> f : written) {
+				for (Hash h : f.join()) {
+					if (h == null) throw new SplitWriteFailException();
+					hashes.add(h);
+				}
 			}
+			return hashes;
 		}
+	}
+	
+	/*
+	 * Encodes chunks into blobs on a pool of worker threads and hands them to a batch writer in their
+	 * original order. The only ordered work is collecting blocks into batches; hashing and storing them
+	 * happens on the pool. The reader blocks once too many bytes of chunks, counted across all files being
+	 * written, have been read but not yet written.
+	 */
+	static class BlockPipeline {
+		private static final int IN_FLIGHT_BYTES = 64*1048576;
+		private static final Semaphore inFlight = new Semaphore(IN_FLIGHT_BYTES);
+		private final BatchWriter bw;
+		//Blocks are batched in a chain, each after the one before it and after its own blob is encoded
+		private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+		//Compression statistics, updated by the encoding workers
+		private final LongAdder chunks = new LongAdder();
+		private final LongAdder rawChunks = new LongAdder();
+		private final LongAdder dataBytes = new LongAdder();
+		private final LongAdder storedBytes = new LongAdder();
 		
-		private int hash() {
-			return buf.hash();
+		public BlockPipeline(CAS cas) {
+			this.bw = new BatchWriter(cas, inFlight);
 		}
 		
-		private ByteArrayOutputStream getBuffer() {
-			return new ByteArrayOutputStream(SIZE_10_MB);
+		void write(byte[] chunk) {
+			if (tail.isCompletedExceptionally() || bw.failed()) throw new SplitWriteFailException();
+			int permits = Math.min(chunk.length, IN_FLIGHT_BYTES);
+			inFlight.acquireUninterruptibly(permits);
+			CompletableFuture<byte[]> encoded = CompletableFuture.supplyAsync(() -> {
+				Blob blob = new Blob();
+				Codec codec = dictionaryCodec;
+				if (codec != null && chunk.length <= DICTIONARY_MAX_CHUNK) {
+					blob.setData(chunk, codec);
+				} else {
+					blob.setData(chunk);
+				}
+				byte[] block = blob.getByteArray();
+				chunks.increment();
+				if (blob.getCodec() == Codecs.RAW) rawChunks.increment();
+				dataBytes.add(chunk.length);
+				storedBytes.add(block.length);
+				return block;
+			}, WORKERS);
+			tail = tail.thenCombine(encoded, (v, block) -> {
+				//The batch writer releases the permits from here on
+				bw.write(block, permits);
+				return v;
+			});
+			tail.whenComplete((v, ex) -> {
+				if (ex != null) inFlight.release(permits);
+			});
+		}
+		
+		List<Hash> finish() {
+			try {
+				tail.thenRun(bw::flush).join();
+				return bw.getHashes();
+			} catch (CompletionException ex) {
+				bw.discard();
+				throw new SplitWriteFailException();
+			}
+		}
+		
+		/*
+		 * Give up on a file that won't be finished, releasing the permits of blocks that won't be written.
+		 */
+		void abandon() {
+			try {
+				tail.join();
+			} catch (CompletionException ex) {
+				//Failed blocks have released their permits already
+			}
+			bw.discard();
+		}
+		
+		/*
+		 * Describe how well the chunks written so far compressed.
+		 */
+		String stats() {
+			long data = dataBytes.sum();
+			long stored = storedBytes.sum();
+			return String.format("%d -> %d bytes, %.1f%%, %d of %d chunks raw",data,stored,
+					data == 0 ? 100.0 : 100.0*stored/data,rawChunks.sum(),chunks.sum());
 		}
 	}
 	
-	static class SplitWriteFailException extends RuntimeException {}
+	/*
+	 * Restores a directory, with its files and subdirectories restored concurrently. Subdirectories are
+	 * created before their contents are handed off.
+	 */
+	static class DirReader extends RecursiveTask<Boolean> {
+		private static final long serialVersionUID = 1L;
+		private final CAS cas;
+		private final Hash in;
+		private final Path dirpath;
+		
+		public DirReader(CAS cas, Hash in, Path dirpath) {
+			this.cas = cas;
+			this.in = in;
+			this.dirpath = dirpath;
+		}
+		
+		@Override
+		protected Boolean compute() {
+			if (!Files.exists(dirpath)) {
+				try {
+					Files.createDirectories(dirpath);
+				} catch (IOException e) {
+					System.err.printf("error: cannot create destination directory");
+					return false;
+				}
+			}
+			Tree tree = readTreeObject(new Tree(), cas, in);
+			if (tree == null) return false;
+			List<DirEnt> entries = new ArrayList<>();
+			List<ForkJoinTask<Boolean>> tasks = new ArrayList<>();
+			for (DirEnt dirent : tree.getEntries()) {
+				Hash dh = dirent.hash;
+				Path path = dirpath.resolve(dirent.name);
+				if (dirent.type == Type.TREE) {
+					try {
+						Files.createDirectory(path);
+					} catch (FileAlreadyExistsException e) {
+						if (!Files.isDirectory(path)) {
+							System.err.printf("error: %s: cannot create directory for %s (exists as a file), skipping\n",in.toString(),path.toString());
+							continue;
+						}
+					} catch (IOException e) {
+						System.err.printf("error: %s: cannot create directory for %s (I/O problem), skipping\n",in.toString(),path.toString());
+						continue;
+					}
+					tasks.add(new DirReader(cas, dh, path));
+				} else if (dirent.type == Type.FILE) {
+					tasks.add(ForkJoinTask.adapt(() -> readFile(cas, dh, path)));
+				} else {
+					continue;
+				}
+				entries.add(dirent);
+			}
+			invokeAll(tasks);
+			for (int i = 0; i < tasks.size(); i++) {
+				if (tasks.get(i).join()) continue;
+				DirEnt dirent = entries.get(i);
+				System.err.printf("error: %s: cannot read %s entry %s (hash %s), skipping\n",in.toString(),
+						dirent.type == Type.TREE ? "directory" : "file",dirpath.resolve(dirent.name).toString(),dirent.hash.toString());
+			}
+			System.out.printf("Read dir %s -> %s\n",in.toString(),dirpath.toString());
+			return true;
+		}
+	}
+	
+	/*
+	 * Fetches and decodes the blobs of a file on the worker pool ahead of the writer, in order. Blobs
+	 * fetched ahead count against a limit shared by every file being restored. A file only waits on that
+	 * limit when it has nothing fetched, so files holding some of it can't block each other.
+	 */
+	static class BlobPrefetcher {
+		private static final int AHEAD = Math.max(16, 4*WORKER_COUNT);
+		private static final Semaphore ahead = new Semaphore(AHEAD);
+		private final CAS cas;
+		private final Hash[] hashes;
+		private final ArrayDeque<CompletableFuture<byte[]>> fetched = new ArrayDeque<>();
+		private int nextFetch = 0;
+		
+		public BlobPrefetcher(CAS cas, Hash[] hashes) {
+			this.cas = cas;
+			this.hashes = hashes;
+		}
+		
+		/*
+		 * Get the data of the next blob, or null if it could not be read.
+		 */
+		byte[] next() {
+			if (fetched.isEmpty()) {
+				ahead.acquireUninterruptibly();
+				fetch();
+			}
+			while (nextFetch < hashes.length && ahead.tryAcquire()) {
+				fetch();
+			}
+			byte[] data = fetched.poll().join();
+			ahead.release();
+			return data;
+		}
+		
+		private void fetch() {
+			Hash h = hashes[nextFetch++];
+			fetched.add(CompletableFuture.supplyAsync(() -> {
+				Blob blob = readBlobObject(new Blob(),cas,h);
+				return blob == null ? null : blob.getData();
+			}, WORKERS));
+		}
+		
+		/*
+		 * Give back the share of the limit held by blobs fetched but never used.
+		 */
+		void close() {
+			for (CompletableFuture<byte[]> f : fetched) {
+				f.whenComplete((d, ex) -> ahead.release());
+			}
+			fetched.clear();
+		}
+	}
+	
+	/*
+	 * Writes a directory, with its files and subdirectories written concurrently. The Tree is assembled
+	 * once every child is done; Trees sort their entries when encoded, so the hash doesn't depend on the
+	 * order children finish in. Given the Tree this directory had in a previous snapshot, the old hash is
+	 * reused without encoding or writing anything if the entries came out the same.
+	 */
+	static class DirWriter extends RecursiveTask<Hash> {
+		private static final long serialVersionUID = 1L;
+		private final CAS cas;
+		private final Path dirpath;
+		private final StatCache statCache;
+		private final Hash previous;
+		
+		public DirWriter(CAS cas, Path dirpath, StatCache statCache) {
+			this(cas, dirpath, statCache, null);
+		}
+		
+		public DirWriter(CAS cas, Path dirpath, StatCache statCache, Hash previous) {
+			this.cas = cas;
+			this.dirpath = dirpath;
+			this.statCache = statCache;
+			this.previous = previous;
+		}
+		
+		@Override
+		protected Hash compute() {
+			Tree previousTree = previous == null ? null : readTreeObject(new Tree(), cas, previous);
+			List<Path> paths = new ArrayList<>();
+			List<Type> types = new ArrayList<>();
+			List<ForkJoinTask<Hash>> tasks = new ArrayList<>();
+			DirectoryStream<Path> pathstream = null;
+			try {
+				pathstream = Files.newDirectoryStream(dirpath);
+			} catch (IOException e) {
+				System.err.printf("error: %s: cannot enumerate directory entries\n",dirpath.toString());
+				return null;
+			}
+			try {
+				for (Path p : pathstream) {
+					if (Files.isDirectory(p)) {
+						tasks.add(new DirWriter(cas, p, statCache, previousEntry(previousTree, p.getFileName().toString())));
+						types.add(Type.TREE);
+					} else if (Files.isRegularFile(p)) {
+						tasks.add(ForkJoinTask.adapt(() -> writeFile(cas, p, statCache)));
+						types.add(Type.FILE);
+					} else {
+						System.err.printf("warning: %s: skipping unknown entry %s\n",dirpath.toString(),p.toString());
+						continue;
+					}
+					paths.add(p);
+				}
+			} finally {
+				try {
+					pathstream.close();
+				} catch (IOException e) {
+					System.err.printf("warning: directory stream refuses to die\n");
+				}
+			}
+			invokeAll(tasks);
+			Tree tree = new Tree();
+			Set<DirEnt> dirents = tree.getEntries();
+			boolean failed = false;
+			for (int i = 0; i < tasks.size(); i++) {
+				Hash h = tasks.get(i).join();
+				if (h == null) {
+					System.err.printf("error: %s: failed to write sub-entry %s\n",dirpath.toString(),paths.get(i).toString());
+					failed = true;
+					continue;
+				}
+				dirents.add(new DirEnt(paths.get(i).getFileName().toString(),h,types.get(i)));
+			}
+			if (failed) return null;
+			if (previousTree != null && previousTree.getEntries().equals(dirents)) {
+				System.out.printf("Unchanged dir %s -> %s\n",dirpath.toString(),previous.toString());
+				return previous;
+			}
+			Hash h = cas.write(tree.getByteArray());
+			if (h != null) {
+				System.out.printf("Wrote dir %s -> %s\n",dirpath.toString(),h.toString());
+			} else {
+				System.err.printf("error: %s: directory block write failure\n",dirpath.toString());
+			}
+			return h;
+		}
+		
+		/*
+		 * The hash of a subdirectory in the previous Tree, if it had one by that name.
+		 */
+		private static Hash previousEntry(Tree previousTree, String name) {
+			if (previousTree == null) return null;
+			for (DirEnt dirent : previousTree.getEntries()) {
+				if (dirent.type == Type.TREE && dirent.name.equals(name)) return dirent.hash;
+			}
+			return null;
+		}
+	}
 	
 	
 	//INTERNAL READ/WRITE//
 	
+	/*
+	 * Write a file, or reuse its File hash from the stat cache if it hasn't changed and the CAS still has it.
+	 */
+	private static Hash writeFile(CAS cas, Path filepath, StatCache statCache) {
+		if (statCache == null) return writeFile(cas, filepath);
+		BasicFileAttributes attrs;
+		try {
+			attrs = Files.readAttributes(filepath, BasicFileAttributes.class);
+		} catch (IOException e) {
+			return writeFile(cas, filepath);
+		}
+		Hash h = statCache.get(filepath, attrs);
+		if (h != null && cas.exists(h)) {
+			System.out.printf("Unchanged %s -> %s\n",filepath.toString(),h.toString());
+			return h;
+		}
+		h = writeFile(cas, filepath);
+		if (h != null) statCache.put(filepath, attrs, h);
+		return h;
+	}
+	
 	private static Hash writeFile(CAS cas, Path filepath) {
-		//Write blocks of the file via split writer instance
-		ArrayList<Hash> hashes = new ArrayList<>();
+		//Write blocks of the file via chunker instance
+		BlockPipeline pipeline = new BlockPipeline(cas);
+		List<Hash> hashes;
 		InputStream is;
 		try {
-			is = new BufferedInputStream(Files.newInputStream(filepath));
+			is = Files.newInputStream(filepath);
 		} catch (IOException e) {
 			System.err.printf("error: %s: cannot open stream\n",filepath.toString());
 			return null; //fail if can't open stream
 		}
-		//form split writer
-		SplitWriter sw = new SplitWriter((byte[] s) -> {
-			Blob blob = new Blob();
-			blob.setData(s);
-			Hash h = cas.write(blob.getByteArray());
-			if (h == null) throw new SplitWriteFailException();
-			hashes.add(h);
-		});
-		int rbyte = 0;
-		//write file blocks by passing data to split writer, then close input stream
+		//form chunker
+		Chunker chunker = new Chunker(pipeline::write);
+		byte[] buf = new byte[65536];
+		int n;
+		//write file blocks by passing data to chunker, then close input stream
 		try {
-			while ((rbyte = is.read()) != -1) {
-				sw.write((byte)rbyte);
+			while ((n = is.read(buf)) != -1) {
+				chunker.update(buf, 0, n);
 			}
-			sw.end();
+			chunker.end();
+			hashes = pipeline.finish();
 		} catch (SplitWriteFailException | IOException ex) {
+			pipeline.abandon();
 			System.err.printf("error: %s: block write failure\n",filepath.toString());
 			return null;
 		} finally {
@@ -499,7 +1095,7 @@ public class Main {
 		file.setHashes(hashes.toArray(new Hash[0]));
 		Hash h = cas.write(file.getByteArray());
 		if (h != null) {
-			System.out.printf("Wrote %s -> %s\n",filepath.toString(),h.toString());
+			System.out.printf("Wrote %s -> %s (%s)\n",filepath.toString(),h.toString(),pipeline.stats());
 			return h;
 		} else {
 			System.err.printf("error: %s: file block write failure\n",filepath.toString());
@@ -514,26 +1110,28 @@ public class Main {
 		Hash[] hlist = file.getHashes();
 		OutputStream os;
 		try {
-			os = new BufferedOutputStream(Files.newOutputStream(filepath));
+			os = Files.newOutputStream(filepath);
 		} catch (IOException e) {
 			System.err.printf("error: %s: cannot open output stream\n",in.toString());
 			return false;
 		}
+		BlobPrefetcher prefetcher = new BlobPrefetcher(cas, hlist);
 		try {
 			for (Hash h : hlist) {
-				Blob blob = readBlobObject(new Blob(),cas,h);
-				if (blob == null) {
+				byte[] data = prefetcher.next();
+				if (data == null) {
 					System.err.printf("error: %s: required blob %s does not exist\n",in.toString(),h.toString());
 					return false;
 				}
 				try {
-					os.write(blob.getData());
+					os.write(data);
 				} catch (IOException e) {
 					System.err.printf("error: %s: output stream write failed\n",in.toString());
 					return false;
 				}
 			}
 		} finally {
+			prefetcher.close();
 			try {
 				os.close();
 			} catch (IOException e) {
@@ -546,97 +1144,12 @@ public class Main {
 		return true;
 	}
 	
-	private static Hash writeDir(CAS cas, Path dirpath) {
-		Tree tree = new Tree();
-		Set<DirEnt> dirents = tree.getEntries();
-		DirectoryStream<Path> pathstream = null;
-		try {
-			pathstream = Files.newDirectoryStream(dirpath);
-		} catch (IOException e) {
-			System.err.printf("error: %s: cannot enumerate directory entries\n",dirpath.toString());
-			return null;
-		}
-		try {
-			for (Path p : pathstream) {
-				Hash h;
-				boolean isDir = false;
-				if (Files.isDirectory(p)) {
-					h = writeDir(cas, p);
-					isDir = true;
-				} else if (Files.isRegularFile(p)) {
-					h = writeFile(cas, p);
-					isDir = false;
-				} else {
-					System.err.printf("warning: %s: skipping unknown entry %s\n",dirpath.toString(),p.toString());
-					continue;
-				}
-				if (h == null) {
-					System.err.printf("error: %s: failed to write sub-entry %s\n",dirpath.toString(),p.toString());
-					return null;
-				}
-				dirents.add(new DirEnt(p.getFileName().toString(),h,isDir? Type.TREE : Type.FILE));
-			}
-		} finally {
-			try {
-				pathstream.close();
-			} catch (IOException e) {
-				System.err.printf("warning: directory stream refuses to die\n");
-			}
-		}
-		Hash h = cas.write(tree.getByteArray());
-		if (h != null) {
-			System.out.printf("Wrote dir %s -> %s\n",dirpath.toString(),h.toString());
-		} else {
-			System.err.printf("error: %s: directory block write failure\n",dirpath.toString());
-		}
-		return h;
+	private static Hash writeDir(CAS cas, Path dirpath, StatCache statCache) {
+		return TREE_POOL.invoke(new DirWriter(cas, dirpath, statCache));
 	}
 	
 	private static boolean readDir(CAS cas, Hash in, Path dirpath) {
-		if (!Files.exists(dirpath)) {
-			try {
-				Files.createDirectories(dirpath);
-			} catch (IOException e) {
-				System.err.printf("error: cannot create destination directory");
-				return false;
-			}
-		}
-		Tree tree = readTreeObject(new Tree(), cas, in);
-		if (tree == null) return false;
-		Set<DirEnt> dirents = tree.getEntries();
-		for (DirEnt dirent : dirents) {
-			Hash dh = dirent.hash;
-			String dn = dirent.name;
-			byte[] data = cas.read(dh);
-			if (data == null) {
-				System.err.printf("error: %s: tree references non-existent block %s, skipping\n",in.toString(),dh.toString());
-				continue;
-			}
-			if (dirent.type == Type.TREE) {
-				Path subdir = dirpath.resolve(dn);
-				try {
-					Files.createDirectory(subdir);
-				} catch (FileAlreadyExistsException e) {
-					if (!Files.isDirectory(subdir)) {
-						System.err.printf("error: %s: cannot create directory for %s (exists as a file), skipping\n",in.toString(),subdir.toString());
-						continue;
-					}
-				} catch (IOException e) {
-					System.err.printf("error: %s: cannot create directory for %s (I/O problem), skipping\n",in.toString(),subdir.toString());
-					continue;
-				}
-				if (!readDir(cas, dh, subdir)) {
-					System.err.printf("error: %s: cannot read directory entry %s (hash %s), skipping\n",in.toString(),subdir.toString(),dh.toString());
-				}
-			} else if (dirent.type == Type.FILE) {
-				Path path =  dirpath.resolve(dn);
-				if (!readFile(cas, dh, path)) {
-					System.err.printf("error: %s: cannot read file entry %s (hash %s), skipping\n",in.toString(),path.toString(),dh.toString());
-				}
-			}
-		}
-		System.out.printf("Read dir %s -> %s\n",in.toString(),dirpath.toString());
-		return true;
+		return TREE_POOL.invoke(new DirReader(cas, in, dirpath));
 	}
 	
 	private static Hash replaceTreeEntry(CAS cas, Hash treeObj, String[] entries, Hash newEntryHash, DirEnt.Type type) {
@@ -710,14 +1223,61 @@ public class Main {
 	
 	//UI INPUT//
 	
+	private static final Path CAS_ROOT = Paths.get("./cas");
+	private static final Path STAT_CACHE = Paths.get("./statcache");
+	private static final long CACHE_BUDGET = 64*1048576;
+	//Names the dictionary new small chunks are compressed against; not a valid hex string, so never taken for a block
+	private static final String DICTIONARY_MARKER = "dictionary";
+	//DEFLATE can only look back 32 KB, and beyond a few times that a dictionary hardly matters
+	private static final int DICTIONARY_SIZE = 32768;
+	private static final int DICTIONARY_MAX_CHUNK = 65536;
+	private static final long TRAIN_SAMPLE_BYTES = 16*1048576;
+	//Codec for small chunks, set from the store's dictionary when the CAS starts
+	private static volatile Codec dictionaryCodec;
+	
 	private static CAS getCAS() { //defaults to filesystem hasher
 //		return new NetworkCAS(InetAddress.getLoopbackAddress(),32573);
-		SHA3Hasher sha3h = verifyHasher();
-		if (sha3h == null) return null;
-		FileSystemCAS cas = new FileSystemCAS(Paths.get("./cas"), sha3h);
+		Hasher hasher = verifyHasher();
+		if (hasher == null) return null;
+		FileSystemCAS fscas = new FileSystemCAS(CAS_ROOT, hasher, 256);
+		//Trees, files and snapshots are read again and again while walking
+		CAS cas = new CachingCAS(fscas, CACHE_BUDGET, CachingCAS.Policy.TINY_LFU);
+		dictionaryCodec = null;
+		if (Codecs.getDefault() == Codecs.DEFLATE) {
+			try {
+				Path marker = CAS_ROOT.resolve(DICTIONARY_MARKER);
+				if (Files.exists(marker)) {
+					String hex = new String(Files.readAllBytes(marker), StandardCharsets.UTF_8).trim();
+					dictionaryCodec = loadDictionary(cas, new Hash(hex));
+				}
+			} catch (IOException | IllegalArgumentException e) {
+				System.err.println("warning: cannot read the store's dictionary, small chunks will be compressed without it");
+			}
+		}
 		return cas;
 	}
 	
+	/*
+	 * Read a dictionary object and return its codec, or null if it can't be read.
+	 */
+	private static Codec loadDictionary(CAS cas, Hash h) {
+		Codec codec = Codecs.forDictionary(h);
+		if (codec != null) return codec;
+		ByteBuffer hd = cas.readBuffer(h);
+		if (hd == null) {
+			System.err.printf("error: %s: dictionary with this hash does not exist\n",h.toString());
+			return null;
+		}
+		Dictionary dictionary = new Dictionary();
+		try {
+			dictionary.parseBuffer(hd);
+		} catch (BadParseException e) {
+			System.err.printf("error: block %s is not a valid dictionary\n",h.toString());
+			return null;
+		}
+		return Codecs.withDictionary(h, dictionary.getData());
+	}
+	
 	private static Path verifyFilePath(String p) {
 		try {
 			Path path = Paths.get(p);
@@ -742,11 +1302,14 @@ public class Main {
 		}
 	}
 	
-	private static SHA3Hasher verifyHasher() {
+	private static Hasher verifyHasher() {
 		try {
-			return new SHA3Hasher();
+			return Hashers.forStore(CAS_ROOT);
 		} catch (NoSuchAlgorithmException e) {
-			System.err.println("error: No SHA3-256 support. Operation halts.");
+			System.err.println("error: " + e.getMessage() + ". Operation halts.");
+			return null;
+		} catch (IOException e) {
+			System.err.println("error: cannot read the store's hash algorithm. Operation halts.");
 			return null;
 		}
 	}
@@ -789,14 +1352,14 @@ public class Main {
 	}
 	
 	private static void printSnapshot(CAS cas, Hash hash) {
-		byte[] data = cas.read(hash);
+		ByteBuffer data = cas.readBuffer(hash);
 		if (data == null) {
 			System.err.printf("error: snapshot does not exist for given hash %s. Operation halts.",hash.toString());
 			return;
 		}
 		try {
 			Snapshot snapshot = new Snapshot();
-			snapshot.parseByteArray(data);
+			snapshot.parseBuffer(data);
 			Instant instant = Instant.ofEpochMilli(snapshot.getTime());
 			System.out.println("Hash: " + hash.toString() + "\tTime: " + instant.toString() + "\tTree: " + snapshot.getTree().toString());
 			Hash pred = snapshot.getPredecessor();
@@ -811,28 +1374,32 @@ public class Main {
 	}
 	
 	private static Blob readBlobObject(Blob blob, CAS cas, Hash h) {
-		byte[] hd = cas.read(h);
+		ByteBuffer hd = cas.readBuffer(h);
 		if (hd == null) {
 			System.err.printf("error: %s: block with this hash does not exist\n",h.toString());
 			return null;
 		}
 		try {
-			blob.parseByteArray(hd);
+			blob.parseBuffer(hd);
 		} catch (BadParseException e) {
 			System.err.printf("error: block %s is not a valid blob\n",h.toString());
 			return null;
 		}
+		if (blob.getCodec() == null && loadDictionary(cas, blob.getDictionary()) == null) {
+			System.err.printf("error: blob %s cannot be decompressed without its dictionary\n",h.toString());
+			return null;
+		}
 		return blob;
 	}
 	
 	private static File readFileObject(File file, CAS cas, Hash h) {
-		byte[] hd = cas.read(h);
+		ByteBuffer hd = cas.readBuffer(h);
 		if (hd == null) {
 			System.err.printf("error: %s: block with this hash does not exist\n",h.toString());
 			return null;
 		}
 		try {
-			file.parseByteArray(hd);
+			file.parseBuffer(hd);
 		} catch (BadParseException e) {
 			System.err.printf("error: block %s is not a valid file\n",h.toString());
 			return null;
@@ -840,14 +1407,29 @@ public class Main {
 		return file;
 	}
 	
+	private static Snapshot readSnapshotObject(Snapshot snapshot, CAS cas, Hash h) {
+		ByteBuffer hd = cas.readBuffer(h);
+		if (hd == null) {
+			System.err.printf("error: %s: block with this hash does not exist\n",h.toString());
+			return null;
+		}
+		try {
+			snapshot.parseBuffer(hd);
+		} catch (BadParseException e) {
+			System.err.printf("error: block %s is not a valid snapshot\n",h.toString());
+			return null;
+		}
+		return snapshot;
+	}
+	
 	private static Tree readTreeObject(Tree tree, CAS cas, Hash h) {
-		byte[] hd = cas.read(h);
+		ByteBuffer hd = cas.readBuffer(h);
 		if (hd == null) {
 			System.err.printf("error: %s: block with this hash does not exist\n",h.toString());
 			return null;
 		}
 		try {
-			tree.parseByteArray(hd);
+			tree.parseBuffer(hd);
 		} catch (BadParseException e) {
 			System.err.printf("error: block %s is not a valid tree\n",h.toString());
 			return null;
@@ -857,7 +1439,7 @@ public class Main {
 	
 	private static boolean checkObject(Hash hash, CAS cas, Set<Hash> alreadyChecked) {
 		if (alreadyChecked.contains(hash)) return true;
-		byte[] data = cas.read(hash);
+		ByteBuffer data = cas.readBuffer(hash);
 		if (data == null) {
 			System.err.println("error: missing object for hash " + hash.toString());
 			return false;
@@ -865,16 +1447,16 @@ public class Main {
 			boolean success = false;
 			try {
 				File file = new File();
-				file.parseByteArray(data);
+				file.parseBuffer(data);
 				System.out.println("File " + hash.toString());
-				for (Hash h : file.getHashes()) {
+				for (Hash h : file.hashes()) {
 					if (!checkObject(h, cas, alreadyChecked)) return false;
 				}
 				success = true;
 			} catch (BadParseException ex) {}
 			try {
 				Tree tree = new Tree();
-				tree.parseByteArray(data);
+				tree.parseBuffer(data);
 				System.out.println("Tree " + hash.toString());
 				List<DirEnt> dirents = new ArrayList<>(tree.getEntries());
 				dirents.sort((a,b) -> {
@@ -888,13 +1470,21 @@ public class Main {
 			} catch (BadParseException ex) {}
 			try {
 				Blob blob = new Blob();
-				blob.parseByteArray(data);
+				blob.parseBuffer(data);
 				System.out.println("Blob " + hash.toString());
+				Hash dict = blob.getDictionary();
+				if (dict != null && !checkObject(dict, cas, alreadyChecked)) return false;
+				success = true;
+			} catch (BadParseException ex) {}
+			try {
+				Dictionary dictionary = new Dictionary();
+				dictionary.parseBuffer(data);
+				System.out.println("Dictionary " + hash.toString());
 				success = true;
 			} catch (BadParseException ex) {}
 			try {
 				Snapshot snapshot = new Snapshot();
-				snapshot.parseByteArray(data);
+				snapshot.parseBuffer(data);
 				System.out.println("Snapshot " + hash.toString());
 				if (!checkObject(snapshot.getTree(), cas, alreadyChecked)) return false;
 				Hash pred = snapshot.getPredecessor();
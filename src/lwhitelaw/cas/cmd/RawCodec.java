@@ -0,0 +1,30 @@
+package lwhitelaw.cas.cmd;
+
+/**
+ * Stores data as it is, for data that doesn't compress.
+ *
+ */
+final class RawCodec implements Codec {
+	static final int ID = 0;
+
+	@Override
+	public int id() {
+		return ID;
+	}
+
+	@Override
+	public String name() {
+		return "raw";
+	}
+
+	@Override
+	public byte[] compress(byte[] data) {
+		return data.clone();
+	}
+
+	@Override
+	public byte[] decompress(byte[] cdata, int rawLength) throws BadParseException {
+		if (rawLength >= 0 && cdata.length != rawLength) throw new BadParseException();
+		return cdata.clone();
+	}
+}
@@ -1,120 +1,42 @@
 package lwhitelaw.cas.cmd;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 import lwhitelaw.cas.Hash;
 
 public class Snapshot extends CASObject {
+	private static final byte[] MAGIC = "SNAP".getBytes();
 	private Hash tree;
 	private long time;
 	private Hash predecessor;
-	@Override
-	public byte[] getByteArray() {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(65536);
-		DataOutputStream dos = new DataOutputStream(baos);
-		try {
-			byte[] magic = "SNAP".getBytes();
-			dos.write(magic);
-			byte[] treehash = tree.hashContents();
-			dos.writeByte(treehash.length & 0xFF);
-			dos.write(treehash);
-			dos.writeLong(time);
-			if (predecessor == null) {
-				dos.writeByte(0x00);
-			} else {
-				dos.writeByte(0x01);
-				byte[] predhash = predecessor.hashContents();
-				dos.writeByte(predhash.length & 0xFF);
-				dos.write(predhash);
-			}
-			dos.close();
-			return baos.toByteArray();
-		} catch (IOException ex) {
-			//Unlikely to ever happen
-			throw new AssertionError("Should not happen");
-		}
-	}
 
 	@Override
-	public void parseByteArray(byte[] data) throws BadParseException {
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-		try {
-			//Magic value
-			byte[] magic = "SNAP".getBytes();
-			byte[] start = new byte[4];
-			dis.readFully(start);
-			if (!Arrays.equals(magic, start)) throw new BadParseException();
-			int treehashsize = dis.readUnsignedByte();
-			byte[] treehashdata = new byte[treehashsize];
-			dis.readFully(treehashdata);
-			tree = new Hash(treehashdata);
-			time = dis.readLong();
-			int hasPredecessor = dis.readUnsignedByte();
-			if (hasPredecessor == 0x01) {
-				int predhashsize = dis.readUnsignedByte();
-				byte[] predhashdata = new byte[predhashsize];
-				dis.readFully(predhashdata);
-				predecessor = new Hash(predhashdata);
-			}
-			//Should be no more data here
-			if (dis.read() != -1) throw new BadParseException();
-			dis.close();
-		} catch (IOException ex) {
-			//thrown on EOF. otherwise cannot fail on data already resident in memory.
-			throw new BadParseException();
-		}
+	public int encodedLength() {
+		return 4 + hashLength(tree) + 8 + 1 + (predecessor == null ? 0 : hashLength(predecessor));
 	}
-	
+
 	@Override
-	public void writeData(OutputStream os) throws IOException {
-		DataOutputStream dos = new DataOutputStream(os);
-		byte[] magic = "SNAP".getBytes();
-		dos.write(magic);
-		byte[] treehash = tree.hashContents();
-		dos.writeByte(treehash.length & 0xFF);
-		dos.write(treehash);
-		dos.writeLong(time);
+	public void encode(ByteBuffer buf) {
+		buf.put(MAGIC);
+		putHash(buf, tree);
+		buf.putLong(time);
 		if (predecessor == null) {
-			dos.writeByte(0x00);
+			buf.put((byte) 0x00);
 		} else {
-			dos.writeByte(0x01);
-			byte[] predhash = predecessor.hashContents();
-			dos.writeByte(predhash.length & 0xFF);
-			dos.write(predhash);
+			buf.put((byte) 0x01);
+			putHash(buf, predecessor);
 		}
-		dos.close();
 	}
 
 	@Override
-	public void readData(InputStream is) throws IOException, BadParseException {
-		DataInputStream dis = new DataInputStream(is);
-		//Magic value
-		byte[] magic = "SNAP".getBytes();
-		byte[] start = new byte[4];
-		dis.readFully(start);
-		if (!Arrays.equals(magic, start)) throw new BadParseException();
-		int treehashsize = dis.readUnsignedByte();
-		byte[] treehashdata = new byte[treehashsize];
-		dis.readFully(treehashdata);
-		tree = new Hash(treehashdata);
-		time = dis.readLong();
-		int hasPredecessor = dis.readUnsignedByte();
+	protected void decode(ByteBuffer buf) throws BadParseException {
+		expectMagic(buf, MAGIC);
+		tree = getHash(buf);
+		time = buf.getLong();
+		int hasPredecessor = buf.get() & 0xFF;
 		if (hasPredecessor == 0x01) {
-			int predhashsize = dis.readUnsignedByte();
-			byte[] predhashdata = new byte[predhashsize];
-			dis.readFully(predhashdata);
-			predecessor = new Hash(predhashdata);
+			predecessor = getHash(buf);
 		}
-		//Should be no more data here
-		if (dis.read() != -1) throw new BadParseException();
-		dis.close();
 	}
 
 	public Hash getTree() {
@@ -0,0 +1,180 @@
+package lwhitelaw.cas.cmd;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import lwhitelaw.cas.Hash;
+
+/*
+ * StatCache {
+ * 	Magic "STAT"
+ * 	int entryCount
+ * 	Entry[entryCount] {
+ * 		UTF path
+ * 		long size
+ * 		long mtimeNanos
+ * 		UTF fileKey
+ * 		ubyte hashLength
+ * 		byte[hashLength] fileHash
+ * 	}
+ * }
+ */
+/**
+ * Remembers the File object hash produced for each file, keyed by the file's path, size, modification time and
+ * file key (the inode on Unix-likes). A file whose attributes all still match can be reused without reading it.
+ * Files modified within a couple of seconds of the cache being loaded are not recorded, since a further change
+ * within the same timestamp granularity would go unnoticed. Thread safe.
+ *
+ */
+public class StatCache {
+	private static final byte[] MAGIC = "STAT".getBytes();
+	private static final long RACY_NANOS = TimeUnit.SECONDS.toNanos(2);
+	private final Path file;
+	private final long loadedNanos;
+	private final Map<String,Entry> entries = new ConcurrentHashMap<>();
+	private final Map<String,Boolean> touched = new ConcurrentHashMap<>();
+
+	private StatCache(Path file) {
+		this.file = file;
+		this.loadedNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+	}
+
+	/**
+	 * Load a cache from a file. A missing or unreadable cache file gives an empty cache.
+	 * @param file the cache file
+	 * @return the cache
+	 */
+	public static StatCache load(Path file) {
+		StatCache cache = new StatCache(file);
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			byte[] magic = new byte[4];
+			dis.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a stat cache");
+			int count = dis.readInt();
+			for (int i = 0; i < count; i++) {
+				String path = dis.readUTF();
+				long size = dis.readLong();
+				long mtime = dis.readLong();
+				String fileKey = dis.readUTF();
+				byte[] hash = new byte[dis.readUnsignedByte()];
+				dis.readFully(hash);
+				cache.entries.put(path, new Entry(size, mtime, fileKey, new Hash(hash)));
+			}
+		} catch (NoSuchFileException ex) {
+			//First run
+		} catch (IOException | IllegalArgumentException ex) {
+			System.err.printf("warning: stat cache %s is unreadable, starting over\n",file.toString());
+			cache.entries.clear();
+		}
+		return cache;
+	}
+
+	/**
+	 * Get the File hash recorded for a file, if its attributes haven't changed since.
+	 * @param path the file
+	 * @param attrs the file's current attributes
+	 * @return the hash, or null if there is none or the file has changed
+	 */
+	public Hash get(Path path, BasicFileAttributes attrs) {
+		String key = key(path);
+		Entry e = entries.get(key);
+		if (e == null || !e.matches(attrs)) return null;
+		touched.put(key, Boolean.TRUE);
+		return e.hash;
+	}
+
+	/**
+	 * Record the File hash written for a file.
+	 * @param path the file
+	 * @param attrs the file's attributes as of before it was read
+	 * @param hash the File object hash
+	 */
+	public void put(Path path, BasicFileAttributes attrs, Hash hash) {
+		String key = key(path);
+		touched.put(key, Boolean.TRUE);
+		Entry e = new Entry(attrs.size(), mtime(attrs), fileKey(attrs), hash);
+		if (e.mtime >= loadedNanos - RACY_NANOS) {
+			//Too fresh to trust; make sure it gets read next time
+			entries.remove(key);
+			return;
+		}
+		entries.put(key, e);
+	}
+
+	/**
+	 * Write the cache back to its file. Entries under the given root that were neither used nor recorded
+	 * are dropped, as those files no longer exist.
+	 * @param root the directory or file that was walked
+	 * @throws IOException if the cache cannot be written
+	 */
+	public void save(Path root) throws IOException {
+		String rootKey = key(root);
+		entries.keySet().removeIf((k) -> !touched.containsKey(k) && (k.equals(rootKey) || k.startsWith(rootKey + root.getFileSystem().getSeparator())));
+		Path dir = file.toAbsolutePath().getParent();
+		Path temp = Files.createTempFile(dir, "statcache", ".part");
+		try {
+			try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+				dos.write(MAGIC);
+				Map<String,Entry> snapshot = new HashMap<>(entries);
+				dos.writeInt(snapshot.size());
+				for (Map.Entry<String,Entry> me : snapshot.entrySet()) {
+					Entry e = me.getValue();
+					dos.writeUTF(me.getKey());
+					dos.writeLong(e.size);
+					dos.writeLong(e.mtime);
+					dos.writeUTF(e.fileKey);
+					byte[] hash = e.hash.hashContents();
+					dos.writeByte(hash.length);
+					dos.write(hash);
+				}
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private static String key(Path path) {
+		return path.toAbsolutePath().normalize().toString();
+	}
+
+	private static long mtime(BasicFileAttributes attrs) {
+		return attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+	}
+
+	private static String fileKey(BasicFileAttributes attrs) {
+		Object fk = attrs.fileKey();
+		return fk == null ? "" : fk.toString();
+	}
+
+	private static final class Entry {
+		final long size;
+		final long mtime;
+		final String fileKey;
+		final Hash hash;
+
+		Entry(long size, long mtime, String fileKey, Hash hash) {
+			this.size = size;
+			this.mtime = mtime;
+			this.fileKey = fileKey;
+			this.hash = hash;
+		}
+
+		boolean matches(BasicFileAttributes attrs) {
+			return size == attrs.size() && mtime == mtime(attrs) && fileKey.equals(fileKey(attrs));
+		}
+	}
+}
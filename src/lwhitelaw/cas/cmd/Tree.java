@@ -1,14 +1,7 @@
 package lwhitelaw.cas.cmd;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -36,148 +29,58 @@ import lwhitelaw.cas.cmd.Tree.DirEnt.Type;
  * }
  */
 public class Tree extends CASObject {
+	private static final byte[] MAGIC = "TREE".getBytes();
 	private Set<DirEnt> entries = new HashSet<>();
-	@Override
-	public byte[] getByteArray() {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(65536);
-		DataOutputStream dos = new DataOutputStream(baos);
-		try {
-			//Get sorted list of array items
-			List<DirEnt> lentries = new ArrayList<>(entries);
-			lentries.sort((a,b) -> {
-				return a.name.compareTo(b.name);
-			});
-			//Magic
-			byte[] magic = "TREE".getBytes();
-			dos.write(magic);
-			dos.writeInt(lentries.size());
-			for (int i = 0; i < lentries.size(); i++) {
-				DirEnt e = lentries.get(i);
-				String n = e.name;
-				dos.writeShort(n.length() & 0xFFFF);
-				dos.writeChars(n);
-				Hash h = e.hash;
-				byte[] hashcontents = h.hashContents();
-				dos.writeByte(hashcontents.length & 0xFF);
-				dos.write(hashcontents);
-				Type t = e.type;
-				if (t == Type.FILE) {
-					dos.writeByte(0x00);
-				} else if (t == Type.TREE) {
-					dos.writeByte(0x01);
-				}
-			}
-			dos.close();
-			return baos.toByteArray();
-		} catch (IOException ex) {
-			//Unlikely to ever happen
-			throw new AssertionError("Should not happen");
-		}
-	}
 
 	@Override
-	public void parseByteArray(byte[] data) throws BadParseException {
-		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-		try {
-			//Magic value
-			byte[] magic = "TREE".getBytes();
-			byte[] start = new byte[4];
-			dis.readFully(start);
-			if (!Arrays.equals(magic, start)) throw new BadParseException();
-			//Directory list size
-			int dirlistsize = dis.readInt();
-			if (dirlistsize < 0) throw new BadParseException();
-			//hashes
-			for (int i = 0; i < dirlistsize; i++) {
-				//Name size (unsigned short)
-				int namesize = dis.readUnsignedShort();
-				//String data (16-bit chars)
-				char[] namedata = new char[namesize];
-				for (int j = 0; j < namedata.length; j++) namedata[j] = dis.readChar();
-				String name = new String(namedata);
-				//Hash size
-				int hashsize = dis.readUnsignedByte();
-				//Hash data
-				byte[] hashdata = new byte[hashsize];
-				dis.readFully(hashdata);
-				
-				byte tag = dis.readByte();
-				Type t = null;
-				if (tag == 0x00) {
-					t = Type.FILE;
-				} else if (tag == 0x01) {
-					t = Type.TREE;
-				} else {
-					throw new BadParseException();
-				}
-				entries.add(new DirEnt(name, new Hash(hashdata), t));
-			}
-			//Should be no more data here
-			if (dis.read() != -1) throw new BadParseException();
-			dis.close();
-		} catch (IOException ex) {
-			//thrown on EOF. otherwise cannot fail on data already resident in memory.
-			throw new BadParseException();
-		}
+	public int encodedLength() {
+		int n = 8;
+		for (DirEnt e : entries) n += 2 + 2*e.name.length() + hashLength(e.hash) + 1;
+		return n;
 	}
-	
+
 	@Override
-	public void writeData(OutputStream os) throws IOException {
-		DataOutputStream dos = new DataOutputStream(os);
+	public void encode(ByteBuffer buf) {
 		//Get sorted list of array items
 		List<DirEnt> lentries = new ArrayList<>(entries);
 		lentries.sort((a,b) -> {
 			return a.name.compareTo(b.name);
 		});
 		//Magic
-		byte[] magic = "TREE".getBytes();
-		dos.write(magic);
-		dos.writeInt(lentries.size());
+		buf.put(MAGIC);
+		buf.putInt(lentries.size());
 		for (int i = 0; i < lentries.size(); i++) {
 			DirEnt e = lentries.get(i);
 			String n = e.name;
-			dos.writeShort(n.length() & 0xFFFF);
-			dos.writeChars(n);
-			Hash h = e.hash;
-			byte[] hashcontents = h.hashContents();
-			dos.writeByte(hashcontents.length & 0xFF);
-			dos.write(hashcontents);
+			buf.putShort((short) n.length());
+			for (int j = 0; j < n.length(); j++) buf.putChar(n.charAt(j));
+			putHash(buf, e.hash);
 			Type t = e.type;
 			if (t == Type.FILE) {
-				dos.writeByte(0x00);
+				buf.put((byte) 0x00);
 			} else if (t == Type.TREE) {
-				dos.writeByte(0x01);
+				buf.put((byte) 0x01);
 			}
 		}
-		dos.close();
 	}
 
 	@Override
-	public void readData(InputStream is) throws IOException, BadParseException {
-		DataInputStream dis = new DataInputStream(is);
-		//Magic value
-		byte[] magic = "TREE".getBytes();
-		byte[] start = new byte[4];
-		dis.readFully(start);
-		if (!Arrays.equals(magic, start)) throw new BadParseException();
+	protected void decode(ByteBuffer buf) throws BadParseException {
+		expectMagic(buf, MAGIC);
 		//Directory list size
-		int dirlistsize = dis.readInt();
+		int dirlistsize = buf.getInt();
 		if (dirlistsize < 0) throw new BadParseException();
 		//hashes
 		for (int i = 0; i < dirlistsize; i++) {
 			//Name size (unsigned short)
-			int namesize = dis.readUnsignedShort();
+			int namesize = buf.getShort() & 0xFFFF;
 			//String data (16-bit chars)
 			char[] namedata = new char[namesize];
-			for (int j = 0; j < namedata.length; j++) namedata[j] = dis.readChar();
+			buf.asCharBuffer().get(namedata);
+			buf.position(buf.position() + 2*namesize);
 			String name = new String(namedata);
-			//Hash size
-			int hashsize = dis.readUnsignedByte();
-			//Hash data
-			byte[] hashdata = new byte[hashsize];
-			dis.readFully(hashdata);
-			
-			byte tag = dis.readByte();
+			Hash hash = getHash(buf);
+			byte tag = buf.get();
 			Type t = null;
 			if (tag == 0x00) {
 				t = Type.FILE;
@@ -186,11 +89,8 @@ public class Tree extends CASObject {
 			} else {
 				throw new BadParseException();
 			}
-			entries.add(new DirEnt(name, new Hash(hashdata), t));
+			entries.add(new DirEnt(name, hash, t));
 		}
-		//Should be no more data here
-		if (dis.read() != -1) throw new BadParseException();
-		dis.close();
 	}
 	
 	public Set<DirEnt> getEntries() {
@@ -0,0 +1,302 @@
+package lwhitelaw.cas.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import lwhitelaw.cas.AsyncCAS;
+import lwhitelaw.cas.Hash;
+
+/**
+ * An asynchronous CAS with network calls, speaking the same protocol as {@link NetworkCAS}. Requests are pipelined
+ * over one connection: each is sent as soon as it is issued and one reader thread per connection matches responses
+ * to requests in the order they were sent. No thread is held per outstanding request. If the connection fails,
+ * every outstanding request fails and the next request reconnects. Futures are completed on the reader thread.
+ * Thread-safe. Close method closes the open socket connection.
+ *
+ */
+public class AsyncNetworkCAS implements AsyncCAS {
+	private final InetAddress target;
+	private final int port;
+	private final Object sendLock = new Object();
+	private Connection connection;
+	public AsyncNetworkCAS(InetAddress endpoint, int port) {
+		target = endpoint;
+		this.port = port;
+	}
+
+	@Override
+	public void close() {
+		synchronized (sendLock) {
+			if (connection != null) connection.fail();
+			connection = null;
+		}
+	}
+
+	@Override
+	public CompletableFuture<Hash> write(byte[] data) {
+		if (data == null) throw new NullPointerException("Null data byte array");
+		return send(new Pending<Hash>(null) {
+			@Override
+			Hash decode(byte responseCode, DataInputStream is) throws IOException {
+				switch (responseCode) {
+				case 0x00: //success
+					return readHash(is);
+				case 0x03: //fail
+					return null;
+				default:
+					throw new IOException("Server returned illegal response: " + responseCode);
+				}
+			}
+		}, (os) -> {
+			os.writeByte(0x00);
+			os.writeInt(data.length);
+			os.write(data);
+		});
+	}
+
+	@Override
+	public CompletableFuture<List<Hash>> writeAll(List<byte[]> blocks) {
+		if (blocks == null) throw new NullPointerException("Null block list");
+		for (byte[] data : blocks) {
+			if (data == null) throw new NullPointerException("Null data byte array");
+		}
+		List<Hash> failed = Arrays.asList(new Hash[blocks.size()]);
+		return send(new Pending<List<Hash>>(failed) {
+			@Override
+			List<Hash> decode(byte responseCode, DataInputStream is) throws IOException {
+				switch (responseCode) {
+				case 0x05: //success
+					int hlistsize = is.readInt();
+					if (hlistsize != blocks.size()) {
+						throw new IOException("Server returned " + hlistsize + " hashes for " + blocks.size() + " blocks");
+					}
+					Hash[] hashes = new Hash[hlistsize];
+					for (int i = 0; i < hlistsize; i++) {
+						hashes[i] = readHash(is);
+					}
+					return Arrays.asList(hashes);
+				case 0x03: //fail
+					return failed;
+				default:
+					throw new IOException("Server returned illegal response: " + responseCode);
+				}
+			}
+		}, (os) -> {
+			os.writeByte(0x04);
+			os.writeInt(blocks.size());
+			for (byte[] data : blocks) {
+				os.writeInt(data.length);
+				os.write(data);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<byte[]> read(Hash hash) {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		return send(new Pending<byte[]>(null) {
+			@Override
+			byte[] decode(byte responseCode, DataInputStream is) throws IOException {
+				switch (responseCode) {
+				case 0x01: //success
+					int dsize = is.readInt();
+					byte[] darray = new byte[dsize];
+					is.readFully(darray);
+					return darray;
+				case 0x03: //fail
+					return null;
+				default:
+					throw new IOException("Server returned illegal response: " + responseCode);
+				}
+			}
+		}, (os) -> {
+			os.writeByte(0x01);
+			writeHash(os, hash);
+		});
+	}
+
+	@Override
+	public CompletableFuture<Boolean> exists(Hash hash) {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		return send(new Pending<Boolean>(false) {
+			@Override
+			Boolean decode(byte responseCode, DataInputStream is) throws IOException {
+				switch (responseCode) {
+				case 0x02: //success
+					return true;
+				case 0x03: //fail
+					return false;
+				default:
+					throw new IOException("Server returned illegal response: " + responseCode);
+				}
+			}
+		}, (os) -> {
+			os.writeByte(0x02);
+			writeHash(os, hash);
+		});
+	}
+
+	@Override
+	public CompletableFuture<List<Hash>> suggest(Hash prefix) {
+		return send(new Pending<List<Hash>>(Collections.emptyList()) {
+			@Override
+			List<Hash> decode(byte responseCode, DataInputStream is) throws IOException {
+				switch (responseCode) {
+				case 0x04: //success
+					int hlistsize = is.readInt();
+					List<Hash> hashlist = new ArrayList<>(hlistsize);
+					for (int i = 0; i < hlistsize; i++) {
+						hashlist.add(readHash(is));
+					}
+					return hashlist;
+				default:
+					throw new IOException("Server returned illegal response: " + responseCode);
+				}
+			}
+		}, (os) -> {
+			os.writeByte(0x03);
+			writeHash(os, prefix);
+		});
+	}
+
+	/*
+	 * Queue a request's completion and send the request. The completion is queued before sending
+	 * and under the send lock so that the queue order matches the order on the wire.
+	 */
+	private <T> CompletableFuture<T> send(Pending<T> pending, RequestWriter request) {
+		synchronized (sendLock) {
+			Connection c = null;
+			try {
+				if (connection == null || connection.dead) {
+					connection = new Connection(new Socket(target, port));
+				}
+				c = connection;
+				c.pending.add(pending);
+				request.write(c.os);
+				c.os.flush();
+			} catch (IOException e) {
+				System.err.println("AsyncNetworkCAS send error");
+				e.printStackTrace();
+				if (c != null) {
+					c.fail();
+				} else {
+					pending.fail();
+				}
+			}
+		}
+		return pending.future;
+	}
+
+	private static Hash readHash(DataInputStream is) throws IOException {
+		int hsize = is.readUnsignedByte();
+		if (hsize == 0) return null;
+		byte[] harray = new byte[hsize];
+		is.readFully(harray);
+		return new Hash(harray);
+	}
+
+	private static void writeHash(DataOutputStream os, Hash hash) throws IOException {
+		byte[] hdata = hash.hashContents();
+		os.writeByte(hdata.length & 0xFF);
+		os.write(hdata);
+	}
+
+	private interface RequestWriter {
+		void write(DataOutputStream os) throws IOException;
+	}
+
+	/*
+	 * A request waiting for its response.
+	 */
+	private static abstract class Pending<T> {
+		final CompletableFuture<T> future = new CompletableFuture<>();
+		private final T failure;
+
+		Pending(T failure) {
+			this.failure = failure;
+		}
+
+		abstract T decode(byte responseCode, DataInputStream is) throws IOException;
+
+		void fail() {
+			future.complete(failure);
+		}
+	}
+
+	/*
+	 * One socket and the reader thread draining its responses.
+	 */
+	private static final class Connection implements Runnable {
+		final Socket socket;
+		final DataOutputStream os;
+		final DataInputStream is;
+		final Queue<Pending<?>> pending = new ConcurrentLinkedQueue<>();
+		volatile boolean dead;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			this.os = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+			this.is = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+			Thread reader = new Thread(this, "AsyncNetworkCAS reader " + socket.getRemoteSocketAddress());
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (;;) {
+					byte responseCode = is.readByte();
+					Pending<?> p = pending.poll();
+					if (p == null) throw new IOException("Response with no request outstanding");
+					completeFrom(p, responseCode);
+				}
+			} catch (IOException e) {
+				if (!dead) {
+					System.err.println("AsyncNetworkCAS connection error");
+					e.printStackTrace();
+				}
+				fail();
+			}
+		}
+
+		private <T> void completeFrom(Pending<T> p, byte responseCode) throws IOException {
+			T result;
+			try {
+				result = p.decode(responseCode, is);
+			} catch (IOException e) {
+				//The stream is out of step with the queue now; nothing after this can be trusted
+				p.fail();
+				throw e;
+			}
+			p.future.complete(result);
+		}
+
+		/*
+		 * Close the socket and fail everything outstanding. Safe to call more than once; anything
+		 * queued after an earlier call is failed by the next.
+		 */
+		void fail() {
+			dead = true;
+			try {
+				socket.close();
+			} catch (IOException e) {}
+			Pending<?> p;
+			while ((p = pending.poll()) != null) {
+				p.fail();
+			}
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package lwhitelaw.cas.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import lwhitelaw.cas.Hash;
+import lwhitelaw.cas.Hasher;
+
+/**
+ * Hashes with BLAKE3, giving 256-bit hashes. BLAKE3 splits its input into 1 KB chunks, hashes each chunk on its
+ * own, and combines them pairwise in a binary tree, so the subtrees of a large block are hashed in parallel on
+ * the common fork-join pool. Hashes are not interchangeable with SHA3-256 hashes of the same data, so a store
+ * must stay with one algorithm. Thread safe.
+ *
+ */
+public class Blake3Hasher implements Hasher {
+	private static final int[] IV = {
+		0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A, 0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+	};
+	private static final int[] PERMUTATION = {2, 6, 3, 10, 7, 0, 4, 13, 1, 11, 12, 5, 9, 14, 15, 8};
+	//Which message word each round uses in each position: the permutation applied once per round
+	private static final int[][] SCHEDULE = new int[7][16];
+	static {
+		for (int i = 0; i < 16; i++) {
+			SCHEDULE[0][i] = i;
+		}
+		for (int r = 1; r < 7; r++) {
+			for (int i = 0; i < 16; i++) {
+				SCHEDULE[r][i] = SCHEDULE[r-1][PERMUTATION[i]];
+			}
+		}
+	}
+	private static final int CHUNK_START = 1;
+	private static final int CHUNK_END = 2;
+	private static final int PARENT = 4;
+	private static final int ROOT = 8;
+	private static final int BLOCK_LEN = 64;
+	private static final int CHUNK_LEN = 1024;
+	//Subtrees at least this big are split across threads
+	private static final int PARALLEL_THRESHOLD = 128*1024;
+
+	@Override
+	public Hash hash(byte[] data) {
+		return new Hash(bytes(subtree(data, 0, data.length, 0, true)));
+	}
+
+	@Override
+	public Hash hash(ByteBuffer data) {
+		if (data.hasArray()) {
+			Hash h = new Hash(bytes(subtree(data.array(), data.arrayOffset() + data.position(), data.remaining(), 0, true)));
+			data.position(data.limit());
+			return h;
+		}
+		Digest digest = newDigest();
+		digest.update(data);
+		return digest.finish();
+	}
+
+	@Override
+	public Digest newDigest() {
+		return new Blake3Digest();
+	}
+
+	/*
+	 * Return the chaining value of a subtree, or the root output if it is the whole input. The left subtree is
+	 * the largest power of two of chunks that leaves at least one byte for the right.
+	 */
+	private static int[] subtree(byte[] data, int off, int len, long chunkCounter, boolean root) {
+		if (len <= CHUNK_LEN) return chunk(data, off, len, chunkCounter, root);
+		long chunks = (len + CHUNK_LEN - 1) / CHUNK_LEN;
+		long leftChunks = Long.highestOneBit(chunks - 1);
+		int leftLen = (int) (leftChunks * CHUNK_LEN);
+		int[] left;
+		int[] right;
+		if (len >= PARALLEL_THRESHOLD) {
+			ForkJoinTask<int[]> leftTask = new Subtree(data, off, leftLen, chunkCounter).fork();
+			right = subtree(data, off + leftLen, len - leftLen, chunkCounter + leftChunks, false);
+			left = leftTask.join();
+		} else {
+			left = subtree(data, off, leftLen, chunkCounter, false);
+			right = subtree(data, off + leftLen, len - leftLen, chunkCounter + leftChunks, false);
+		}
+		return parent(left, right, root);
+	}
+
+	private static final class Subtree extends RecursiveTask<int[]> {
+		private static final long serialVersionUID = 1L;
+		private final byte[] data;
+		private final int off;
+		private final int len;
+		private final long chunkCounter;
+
+		Subtree(byte[] data, int off, int len, long chunkCounter) {
+			this.data = data;
+			this.off = off;
+			this.len = len;
+			this.chunkCounter = chunkCounter;
+		}
+
+		@Override
+		protected int[] compute() {
+			return subtree(data, off, len, chunkCounter, false);
+		}
+	}
+
+	/*
+	 * Hash one chunk of up to 1 KB. The empty input is a single empty chunk.
+	 */
+	private static int[] chunk(byte[] data, int off, int len, long chunkCounter, boolean root) {
+		int[] cv = IV.clone();
+		int[] m = new int[16];
+		int blocks = Math.max(1, (len + BLOCK_LEN - 1) / BLOCK_LEN);
+		for (int b = 0; b < blocks; b++) {
+			int blockLen = Math.min(BLOCK_LEN, len - b*BLOCK_LEN);
+			words(data, off + b*BLOCK_LEN, blockLen, m);
+			int flags = (b == 0 ? CHUNK_START : 0) | (b == blocks - 1 ? CHUNK_END : 0);
+			if (root && b == blocks - 1) flags |= ROOT;
+			compress(cv, m, chunkCounter, blockLen, flags);
+		}
+		return cv;
+	}
+
+	private static int[] parent(int[] left, int[] right, boolean root) {
+		int[] m = new int[16];
+		System.arraycopy(left, 0, m, 0, 8);
+		System.arraycopy(right, 0, m, 8, 8);
+		int[] cv = IV.clone();
+		compress(cv, m, 0, BLOCK_LEN, PARENT | (root ? ROOT : 0));
+		return cv;
+	}
+
+	/*
+	 * The compression function, truncated to the eight words every caller here needs. The result is written over
+	 * the chaining value. Each round reads the message words in its own order rather than permuting them.
+	 */
+	private static void compress(int[] cv, int[] m, long counter, int blockLen, int flags) {
+		int s0 = cv[0], s1 = cv[1], s2 = cv[2], s3 = cv[3], s4 = cv[4], s5 = cv[5], s6 = cv[6], s7 = cv[7];
+		int s8 = IV[0], s9 = IV[1], s10 = IV[2], s11 = IV[3];
+		int s12 = (int) counter, s13 = (int) (counter >>> 32), s14 = blockLen, s15 = flags;
+		for (int r = 0; r < 7; r++) {
+			int[] s = SCHEDULE[r];
+			//Columns
+			s0 += s4 + m[s[0]]; s12 = Integer.rotateRight(s12 ^ s0, 16); s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 12);
+			s0 += s4 + m[s[1]]; s12 = Integer.rotateRight(s12 ^ s0, 8); s8 += s12; s4 = Integer.rotateRight(s4 ^ s8, 7);
+			s1 += s5 + m[s[2]]; s13 = Integer.rotateRight(s13 ^ s1, 16); s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 12);
+			s1 += s5 + m[s[3]]; s13 = Integer.rotateRight(s13 ^ s1, 8); s9 += s13; s5 = Integer.rotateRight(s5 ^ s9, 7);
+			s2 += s6 + m[s[4]]; s14 = Integer.rotateRight(s14 ^ s2, 16); s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 12);
+			s2 += s6 + m[s[5]]; s14 = Integer.rotateRight(s14 ^ s2, 8); s10 += s14; s6 = Integer.rotateRight(s6 ^ s10, 7);
+			s3 += s7 + m[s[6]]; s15 = Integer.rotateRight(s15 ^ s3, 16); s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 12);
+			s3 += s7 + m[s[7]]; s15 = Integer.rotateRight(s15 ^ s3, 8); s11 += s15; s7 = Integer.rotateRight(s7 ^ s11, 7);
+			//Diagonals
+			s0 += s5 + m[s[8]]; s15 = Integer.rotateRight(s15 ^ s0, 16); s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 12);
+			s0 += s5 + m[s[9]]; s15 = Integer.rotateRight(s15 ^ s0, 8); s10 += s15; s5 = Integer.rotateRight(s5 ^ s10, 7);
+			s1 += s6 + m[s[10]]; s12 = Integer.rotateRight(s12 ^ s1, 16); s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 12);
+			s1 += s6 + m[s[11]]; s12 = Integer.rotateRight(s12 ^ s1, 8); s11 += s12; s6 = Integer.rotateRight(s6 ^ s11, 7);
+			s2 += s7 + m[s[12]]; s13 = Integer.rotateRight(s13 ^ s2, 16); s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 12);
+			s2 += s7 + m[s[13]]; s13 = Integer.rotateRight(s13 ^ s2, 8); s8 += s13; s7 = Integer.rotateRight(s7 ^ s8, 7);
+			s3 += s4 + m[s[14]]; s14 = Integer.rotateRight(s14 ^ s3, 16); s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 12);
+			s3 += s4 + m[s[15]]; s14 = Integer.rotateRight(s14 ^ s3, 8); s9 += s14; s4 = Integer.rotateRight(s4 ^ s9, 7);
+		}
+		cv[0] = s0 ^ s8; cv[1] = s1 ^ s9; cv[2] = s2 ^ s10; cv[3] = s3 ^ s11;
+		cv[4] = s4 ^ s12; cv[5] = s5 ^ s13; cv[6] = s6 ^ s14; cv[7] = s7 ^ s15;
+	}
+
+	/*
+	 * Read a block of up to 64 bytes as little-endian words, zero padded.
+	 */
+	private static void words(byte[] data, int off, int len, int[] m) {
+		if (len == BLOCK_LEN) {
+			for (int i = 0; i < 16; i++) {
+				int k = off + i*4;
+				m[i] = (data[k] & 0xFF) | (data[k+1] & 0xFF) << 8 | (data[k+2] & 0xFF) << 16 | (data[k+3] & 0xFF) << 24;
+			}
+			return;
+		}
+		for (int i = 0; i < 16; i++) {
+			int w = 0;
+			for (int j = 0; j < 4; j++) {
+				int k = i*4 + j;
+				if (k < len) w |= (data[off + k] & 0xFF) << (8*j);
+			}
+			m[i] = w;
+		}
+	}
+
+	private static byte[] bytes(int[] cv) {
+		byte[] out = new byte[32];
+		for (int i = 0; i < 8; i++) {
+			out[i*4+0] = (byte) cv[i];
+			out[i*4+1] = (byte) (cv[i] >>> 8);
+			out[i*4+2] = (byte) (cv[i] >>> 16);
+			out[i*4+3] = (byte) (cv[i] >>> 24);
+		}
+		return out;
+	}
+
+	/*
+	 * Incremental BLAKE3. Completed chunks are merged into a stack of subtree chaining values as soon as
+	 * the chunk count allows; the last block seen is held back, since it is only known to be final at the end.
+	 */
+	private static final class Blake3Digest implements Digest {
+		private final int[][] stack = new int[54][];
+		private int stackSize;
+		private int[] cv = IV.clone();
+		private long chunkCounter;
+		private final byte[] block = new byte[BLOCK_LEN];
+		private final int[] m = new int[16];
+		private int blockLen;
+		private int blocksCompressed;
+
+		@Override
+		public void update(byte[] data, int off, int len) {
+			while (len > 0) {
+				if (blockLen == BLOCK_LEN) {
+					if (blocksCompressed == CHUNK_LEN / BLOCK_LEN - 1) {
+						//The held block ends a chunk that more data follows, so the chunk is done
+						words(block, 0, BLOCK_LEN, m);
+						compress(cv, m, chunkCounter, BLOCK_LEN, CHUNK_END);
+						addChunk(cv);
+					} else {
+						words(block, 0, BLOCK_LEN, m);
+						compress(cv, m, chunkCounter, BLOCK_LEN, blocksCompressed == 0 ? CHUNK_START : 0);
+						blocksCompressed++;
+					}
+					blockLen = 0;
+				}
+				int take = Math.min(BLOCK_LEN - blockLen, len);
+				System.arraycopy(data, off, block, blockLen, take);
+				blockLen += take;
+				off += take;
+				len -= take;
+			}
+		}
+
+		private void addChunk(int[] chunkCv) {
+			chunkCounter++;
+			long total = chunkCounter;
+			while ((total & 1) == 0) {
+				chunkCv = parent(stack[--stackSize], chunkCv, false);
+				total >>>= 1;
+			}
+			stack[stackSize++] = chunkCv;
+			cv = IV.clone();
+			blocksCompressed = 0;
+		}
+
+		@Override
+		public Hash finish() {
+			words(block, 0, blockLen, m);
+			int flags = (blocksCompressed == 0 ? CHUNK_START : 0) | CHUNK_END;
+			int[] out = cv;
+			compress(out, m, chunkCounter, blockLen, flags | (stackSize == 0 ? ROOT : 0));
+			for (int i = stackSize - 1; i >= 0; i--) {
+				out = parent(stack[i], out, i == 0);
+			}
+			return new Hash(bytes(out));
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package lwhitelaw.cas.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import lwhitelaw.cas.Hash;
+
+/**
+ * A Bloom filter over block hashes. Since hashes are already uniformly distributed, bit positions are taken
+ * straight from the hash bytes rather than hashing them again. The filter is sized for an expected number of
+ * hashes and a false positive rate; adding more than expected still works, but the false positive rate rises.
+ * Thread safe and lock free.
+ *
+ */
+public final class BloomFilter implements MembershipFilter {
+	private static final int MAX_PROBES = 16;
+	private final AtomicLongArray bits;
+	private final long mask;
+	private final int probes;
+
+	/**
+	 * Create a filter.
+	 * @param expected the number of hashes the filter is expected to hold
+	 * @param fpp the false positive rate wanted at that many hashes, between 0 and 1 exclusive
+	 */
+	public BloomFilter(long expected, double fpp) {
+		if (expected < 1) throw new IllegalArgumentException("Expected count must be positive");
+		if (!(fpp > 0 && fpp < 1)) throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+		double ln2 = Math.log(2);
+		double optimal = -expected * Math.log(fpp) / (ln2 * ln2);
+		//Round up to a power of two so positions can be masked; 64 bits at least, 2^36 at most
+		long m = Long.highestOneBit((long) Math.min(optimal, 1L << 36) - 1) << 1;
+		m = Math.max(64, Math.min(m, 1L << 36));
+		this.bits = new AtomicLongArray((int) (m >>> 6));
+		this.mask = m - 1;
+		this.probes = (int) Math.max(1, Math.min(MAX_PROBES, Math.round((double) m / expected * ln2)));
+	}
+
+	@Override
+	public void add(Hash hash) {
+		long h1 = first(hash);
+		long h2 = second(hash);
+		for (int i = 0; i < probes; i++) {
+			long pos = (h1 + i * h2) & mask;
+			int word = (int) (pos >>> 6);
+			long bit = 1L << pos;
+			long old = bits.get(word);
+			while ((old & bit) == 0 && !bits.compareAndSet(word, old, old | bit)) {
+				old = bits.get(word);
+			}
+		}
+	}
+
+	@Override
+	public boolean mightContain(Hash hash) {
+		long h1 = first(hash);
+		long h2 = second(hash);
+		for (int i = 0; i < probes; i++) {
+			long pos = (h1 + i * h2) & mask;
+			if ((bits.get((int) (pos >>> 6)) & (1L << pos)) == 0) return false;
+		}
+		return true;
+	}
+
+	/*
+	 * The two halves of the double hashing come from the first 16 bytes of the hash. Hashes too short
+	 * for that are mixed up from their hash code instead.
+	 */
+	private static long first(Hash hash) {
+		byte[] b = hash.hashContents();
+		if (b.length < 16) return mix(hash.hashCode());
+		return readLong(b, 0);
+	}
+
+	private static long second(Hash hash) {
+		byte[] b = hash.hashContents();
+		long h = b.length < 16 ? mix(~hash.hashCode()) : readLong(b, 8);
+		//Odd, so the probes don't fall into a short cycle
+		return h | 1;
+	}
+
+	private static long readLong(byte[] b, int off) {
+		long v = 0;
+		for (int i = 0; i < 8; i++) {
+			v = (v << 8) | (b[off + i] & 0xFF);
+		}
+		return v;
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,235 @@
+package lwhitelaw.cas.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import lwhitelaw.cas.CAS;
+import lwhitelaw.cas.Hash;
+import lwhitelaw.cas.HashOutputStream;
+
+/**
+ * Keeps recently read blocks in memory in front of another CAS, up to a budget in bytes. Blocks never change once
+ * written, so a cached block is never stale. Only reads fill the cache; writes go straight through. Blocks bigger
+ * than an eighth of the budget are never cached. Arrays returned from {@link #read(Hash)} are copies, and buffers
+ * from {@link #readBuffer(Hash)} are read-only views of the cached block.
+ * <p>
+ * With {@link Policy#LRU}, the least recently used blocks are evicted. With {@link Policy#TINY_LFU}, new blocks
+ * go into a small LRU window, and a block leaving the window only displaces blocks from the main cache if it has
+ * been read more often recently than they have. One pass over a large restore then can't flush out the trees and
+ * file objects that are read again and again. Thread safe if the CAS underneath is.
+ *
+ */
+public class CachingCAS implements CAS {
+	/**
+	 * How a cache chooses what to keep.
+	 */
+	public enum Policy {
+		/** Evict the least recently used block. */
+		LRU,
+		/** Keep blocks that are read often over blocks that are read once (W-TinyLFU). */
+		TINY_LFU
+	}
+
+	private final CAS cas;
+	private final Policy policy;
+	private final long maxEntry;
+	private final long windowBudget;
+	private final long mainBudget;
+	private final LinkedHashMap<Hash,byte[]> window = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<Hash,byte[]> main = new LinkedHashMap<>(16, 0.75f, true);
+	private final FrequencySketch sketch;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private long windowBytes;
+	private long mainBytes;
+
+	/**
+	 * Wrap a CAS with a cache.
+	 * @param cas the CAS to cache blocks from
+	 * @param budget the most bytes of block data to keep
+	 * @param policy the eviction policy
+	 */
+	public CachingCAS(CAS cas, long budget, Policy policy) {
+		if (cas == null) throw new NullPointerException("Null CAS");
+		if (policy == null) throw new NullPointerException("Null policy");
+		if (budget < 1) throw new IllegalArgumentException("Budget must be positive");
+		this.cas = cas;
+		this.policy = policy;
+		this.maxEntry = budget / 8;
+		if (policy == Policy.TINY_LFU) {
+			this.windowBudget = Math.max(maxEntry, budget / 100);
+			this.mainBudget = budget - windowBudget;
+			//Sized for a cache full of small tree and file objects
+			this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(1024, budget / 4096)));
+		} else {
+			this.windowBudget = 0;
+			this.mainBudget = budget;
+			this.sketch = null;
+		}
+	}
+
+	/**
+	 * Return the number of reads answered from the cache.
+	 * @return the hit count
+	 */
+	public long hitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Return the number of reads that went to the CAS underneath.
+	 * @return the miss count
+	 */
+	public long missCount() {
+		return misses.get();
+	}
+
+	/*
+	 * Look up a block, counting the access towards its frequency. Returns the cached array, which must not leak.
+	 */
+	private synchronized byte[] lookup(Hash hash) {
+		if (sketch != null) sketch.increment(hash);
+		byte[] data = window.get(hash);
+		if (data == null) data = main.get(hash);
+		return data;
+	}
+
+	/*
+	 * Read a block through the cache. Returns the cached array, which must not leak.
+	 */
+	private byte[] fetch(Hash hash) {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		byte[] data = lookup(hash);
+		if (data != null) {
+			hits.incrementAndGet();
+			return data;
+		}
+		misses.incrementAndGet();
+		data = cas.read(hash);
+		if (data != null && data.length <= maxEntry) admit(hash, data);
+		return data;
+	}
+
+	private synchronized void admit(Hash hash, byte[] data) {
+		if (window.containsKey(hash) || main.containsKey(hash)) return;
+		if (policy == Policy.LRU) {
+			main.put(hash, data);
+			mainBytes += data.length;
+			Iterator<Map.Entry<Hash,byte[]>> it = main.entrySet().iterator();
+			while (mainBytes > mainBudget && it.hasNext()) {
+				mainBytes -= it.next().getValue().length;
+				it.remove();
+			}
+			return;
+		}
+		window.put(hash, data);
+		windowBytes += data.length;
+		Iterator<Map.Entry<Hash,byte[]>> it = window.entrySet().iterator();
+		while (windowBytes > windowBudget && it.hasNext()) {
+			Map.Entry<Hash,byte[]> candidate = it.next();
+			it.remove();
+			windowBytes -= candidate.getValue().length;
+			promote(candidate.getKey(), candidate.getValue());
+		}
+	}
+
+	/*
+	 * Move a block leaving the window into the main cache, if it is used more often than everything it would
+	 * replace. The victims are all judged before any is evicted, so a rejected block leaves the main cache as it was.
+	 */
+	private void promote(Hash hash, byte[] data) {
+		if (data.length > mainBudget) return;
+		int freq = sketch.frequency(hash);
+		long freed = 0;
+		int victims = 0;
+		for (Map.Entry<Hash,byte[]> victim : main.entrySet()) {
+			if (mainBytes - freed + data.length <= mainBudget) break;
+			if (sketch.frequency(victim.getKey()) >= freq) return;
+			freed += victim.getValue().length;
+			victims++;
+		}
+		Iterator<Map.Entry<Hash,byte[]>> it = main.entrySet().iterator();
+		for (int i = 0; i < victims; i++) {
+			mainBytes -= it.next().getValue().length;
+			it.remove();
+		}
+		main.put(hash, data);
+		mainBytes += data.length;
+	}
+
+	@Override
+	public Hash write(byte[] data) {
+		return cas.write(data);
+	}
+
+	@Override
+	public List<Hash> writeAll(List<byte[]> blocks) {
+		return cas.writeAll(blocks);
+	}
+
+	@Override
+	public HashOutputStream writeStream() throws IOException {
+		return cas.writeStream();
+	}
+
+	@Override
+	public byte[] read(Hash hash) {
+		byte[] data = fetch(hash);
+		return data == null ? null : Arrays.copyOf(data, data.length);
+	}
+
+	@Override
+	public ByteBuffer readBuffer(Hash hash) {
+		byte[] data = fetch(hash);
+		return data == null ? null : ByteBuffer.wrap(data).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Open a stream over a block. Cached blocks are streamed from memory; others are streamed from the
+	 * CAS underneath without being cached, since streams are used for blocks too big to hold.
+	 */
+	@Override
+	public InputStream readStream(Hash hash) throws IOException {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		byte[] data = lookup(hash);
+		if (data != null) {
+			hits.incrementAndGet();
+			return new ByteArrayInputStream(data);
+		}
+		misses.incrementAndGet();
+		return cas.readStream(hash);
+	}
+
+	@Override
+	public boolean exists(Hash hash) {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		synchronized (this) {
+			if (window.containsKey(hash) || main.containsKey(hash)) return true;
+		}
+		return cas.exists(hash);
+	}
+
+	@Override
+	public List<Hash> suggest(Hash prefix) {
+		return cas.suggest(prefix);
+	}
+
+	@Override
+	public void forEachHash(Consumer<Hash> action) {
+		cas.forEachHash(action);
+	}
+
+	@Override
+	public void close() throws Exception {
+		cas.close();
+	}
+}
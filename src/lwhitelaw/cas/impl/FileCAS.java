@@ -1,89 +1,169 @@
 package lwhitelaw.cas.impl;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
 
 import lwhitelaw.cas.CAS;
 import lwhitelaw.cas.Hash;
+import lwhitelaw.cas.Hash256Set;
 import lwhitelaw.cas.Hasher;
 
 /**
  * A CAS implemented as a log of blocks inside one large file. Probably won't work on FAT32 due to filesystem limits.
- * Inefficient and otherwise not finished.
+ * Block locations are kept in an index file next to the log (the log's name with ".idx" appended), which is
+ * rebuilt from the log if it is missing or out of date. Instances are thread safe with respect to the JVM.
+ * In mapped mode, reads are served from a memory mapping of the log and {@link #readBuffer(Hash)}
+ * returns views of the mapping rather than copies.
  *
  */
 public class FileCAS implements CAS {
 	private RandomAccessFile file;
 	private Hasher hasher;
+	private LogIndex index;
+	private MappedLog mapping;
+	private final LogAppender appender = new LogAppender();
 	long endptr;
 	public FileCAS(Path filep, Hasher hasher) throws IOException {
+		this(filep, hasher, false);
+	}
+	
+	public FileCAS(Path filep, Hasher hasher, boolean mapped) throws IOException {
 		this.hasher = hasher;
 		file = new RandomAccessFile(filep.toFile(),"rw");
-		endptr = file.length();
+		try {
+			index = new LogIndex(filep.resolveSibling(filep.getFileName() + ".idx"), file);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+		endptr = index.end();
+		if (mapped) mapping = new MappedLog(file.getChannel());
 	}
-	
+
 	@Override
-	public void close() throws Exception {
-		file.close();
+	public synchronized void close() throws Exception {
+		try {
+			index.close();
+		} finally {
+			file.close();
+		}
 	}
 
 	@Override
-	public Hash write(byte[] data) {
+	public synchronized Hash write(byte[] data) {
+		if (data == null) throw new NullPointerException("Null data byte array");
 		try {
 			Hash h = hasher.hash(data);
 			if (exists(h)) return h;
 			file.seek(endptr);
-			byte[] hashbytes = h.hashContents(); 
+			byte[] hashbytes = h.hashContents();
 			file.writeByte(hashbytes.length & 0xFF);
 			file.write(hashbytes);
 			file.writeInt(data.length & 0x7FFFFFFF);
+			long dataptr = file.getFilePointer();
 			file.write(data);
 			endptr = file.getFilePointer();
+			index.add(h, dataptr, data.length);
 			return h;
 		} catch (IOException ex) {
 			return null;
 		}
 	}
 
+	/**
+	 * Write a batch of blocks, appending all new records to the log in one buffered run and
+	 * indexing them once the run has been written.
+	 */
+	@Override
+	public synchronized List<Hash> writeAll(List<byte[]> blocks) {
+		if (blocks == null) throw new NullPointerException("Null block list");
+		Hash[] hashes = new Hash[blocks.size()];
+		long[] dataptrs = new long[blocks.size()];
+		boolean[] appended = new boolean[blocks.size()];
+		Set<Hash> batch = new Hash256Set();
+		try {
+			appender.start(file.getChannel(), endptr);
+			for (int i = 0; i < hashes.length; i++) {
+				byte[] data = blocks.get(i);
+				if (data == null) throw new NullPointerException("Null data byte array");
+				Hash h = hasher.hash(data);
+				hashes[i] = h;
+				if (exists(h) || !batch.add(h)) continue;
+				dataptrs[i] = appender.append(h, data);
+				appended[i] = true;
+			}
+			endptr = appender.finish();
+			for (int i = 0; i < hashes.length; i++) {
+				if (appended[i]) index.add(hashes[i], dataptrs[i], blocks.get(i).length);
+			}
+			index.flush();
+			return Arrays.asList(hashes);
+		} catch (IOException ex) {
+			return new ArrayList<>(Collections.nCopies(blocks.size(), (Hash) null));
+		}
+	}
+
 	@Override
-	public byte[] read(Hash hash) {
+	public synchronized byte[] read(Hash hash) {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		LogIndex.Entry e = index.get(hash);
+		if (e == null) return null;
 		try {
-			file.seek(0);
-			Hash h = null;
-			byte[] retD = null;
-			while (!hash.equals(h)) {
-				int hsize = file.readUnsignedByte();
-				byte[] hdata = new byte[hsize];
-				file.readFully(hdata);
-				h = new Hash(hdata);
-				int dsize = file.readInt();
-				retD = new byte[dsize];
+			byte[] retD = new byte[e.length];
+			if (mapping != null) {
+				mapping.slice(e.offset, e.length).get(retD);
+			} else {
+				file.seek(e.offset);
 				file.readFully(retD);
 			}
 			return retD;
-		} catch (IOException e) {
+		} catch (IOException ex) {
 			return null;
 		}
 	}
 
 	@Override
-	public boolean exists(Hash hash) {
+	public synchronized ByteBuffer readBuffer(Hash hash) {
+		if (mapping == null) return CAS.super.readBuffer(hash);
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		LogIndex.Entry e = index.get(hash);
+		if (e == null) return null;
 		try {
-			file.seek(0);
-			Hash h = null;
-			while (!hash.equals(h)) {
-				int hsize = file.readUnsignedByte();
-				byte[] hdata = new byte[hsize];
-				file.readFully(hdata);
-				h = new Hash(hdata);
-				int dsize = file.readInt();
-				file.seek(file.getFilePointer()+dsize);
-			}
-			return true;
-		} catch (IOException e) {
-			return false;
+			return mapping.slice(e.offset, e.length);
+		} catch (IOException ex) {
+			return null;
 		}
 	}
 
+	/**
+	 * Open a stream over a block in the log. The block is read from the file as the stream is consumed.
+	 */
+	@Override
+	public synchronized InputStream readStream(Hash hash) throws IOException {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		LogIndex.Entry e = index.get(hash);
+		if (e == null) throw new IOException("Data " + hash.toString() + " cannot be accessed");
+		return new RegionInputStream(file.getChannel(), e.offset, e.length);
+	}
+
+	@Override
+	public synchronized boolean exists(Hash hash) {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		return index.get(hash) != null;
+	}
+
+	@Override
+	public synchronized void forEachHash(Consumer<Hash> action) {
+		index.hashes().forEach(action);
+	}
+
 }
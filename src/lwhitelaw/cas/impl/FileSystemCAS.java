@@ -2,60 +2,144 @@ package lwhitelaw.cas.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 import lwhitelaw.cas.CAS;
 import lwhitelaw.cas.Hash;
+import lwhitelaw.cas.HashOutputStream;
 import lwhitelaw.cas.Hasher;
 
 /**
  * A basic CAS implemented over a file system. No limits on block size are imposed other than those by the
  * underlying file system. Blocks are stored in a two-level directory tree of blocks to avoid
- * placing many block files in any one directory. Instances are thread safe with respect to the JVM, but
- * may not be atomic with respect to the file system.
+ * placing many block files in any one directory. Instances are thread safe with respect to the JVM and
+ * do not serialize operations on unrelated blocks. Blocks are written to a temporary file in the destination
+ * directory, synced to disk, and renamed into place, so a block is never visible half-written, even after a crash.
+ * <p>
+ * By default every block is synced as it is written. With a sync batch size greater than one, written blocks are
+ * held as pending temporary files (still readable through this instance) and published in groups, syncing each
+ * directory once per group. In that mode a block is only durable and visible to other processes after
+ * {@link #sync()} or {@link #close()} returns, or after the batch fills up.
+ * <p>
+ * Streams returned by {@link #writeStream()} hash their data as it is written and spool it to a temporary file,
+ * and streams returned by {@link #readStream(Hash)} read the block file as they are consumed, so neither
+ * holds a whole block in memory.
+ * <p>
+ * Temporary files left behind by a crash are deleted once they are a day old: those in the root when an instance
+ * is created, and those in a block directory the first time the instance writes there. Younger ones are left
+ * alone, as another process may still be writing them.
  *
  */
 public class FileSystemCAS implements CAS {
+	private static final int LOCK_STRIPES = 64;
+	private static final long STALE_TEMP_MILLIS = 24*60*60*1000L;
 	private final Path root;
 	private final Hasher hasher;
+	private final int syncBatchSize;
+	private final Object[] writeLocks = new Object[LOCK_STRIPES];
+	private final Object syncLock = new Object();
+	private final Map<Hash,Path> pending = new ConcurrentHashMap<>();
+	private final Set<Path> dirtyDirs = ConcurrentHashMap.newKeySet();
+	private final Set<Path> sweptDirs = ConcurrentHashMap.newKeySet();
 	public FileSystemCAS(Path root, Hasher hasher) {
+		this(root, hasher, 1);
+	}
+	
+	public FileSystemCAS(Path root, Hasher hasher, int syncBatchSize) {
 		if (root == null) throw new NullPointerException("Null root directory");
 		if (hasher == null) throw new NullPointerException("Null hasher");
+		if (syncBatchSize < 1) throw new IllegalArgumentException("Sync batch size must be at least 1");
 		this.root = root;
+		this.syncBatchSize = syncBatchSize;
 		this.hasher = hasher;
+		for (int i = 0; i < writeLocks.length; i++) {
+			writeLocks[i] = new Object();
+		}
+		if (Files.isDirectory(root)) sweepTemps(root);
 	}
 
 	@Override
-	public synchronized Hash write(byte[] data) {
+	public Hash write(byte[] data) {
+		Hash hash = store(data, syncBatchSize > 1);
+		if (hash != null && pending.size() >= syncBatchSize) {
+			try {
+				syncIfFull();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+		return hash;
+	}
+	
+	@Override
+	public HashOutputStream writeStream() throws IOException {
+		return new BlockOutputStream();
+	}
+	
+	/**
+	 * Write a batch of blocks. Blocks are synced and published together at the end of the batch rather than
+	 * one at a time. With a sync batch size greater than one, they are left pending as with {@link #write(byte[])}.
+	 */
+	@Override
+	public List<Hash> writeAll(List<byte[]> blocks) {
+		if (blocks == null) throw new NullPointerException("Null block list");
+		List<Hash> hashes = new ArrayList<>(blocks.size());
+		for (byte[] data : blocks) {
+			hashes.add(store(data, true));
+		}
+		if (syncBatchSize == 1 || pending.size() >= syncBatchSize) {
+			try {
+				if (syncBatchSize == 1) {
+					sync();
+				} else {
+					syncIfFull();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				return new ArrayList<>(Collections.nCopies(blocks.size(), (Hash) null));
+			}
+		}
+		return hashes;
+	}
+	
+	/*
+	 * Hash a block and write it out if it isn't stored yet. Deferred blocks are left pending.
+	 */
+	private Hash store(byte[] data, boolean defer) {
 		if (data == null) throw new NullPointerException("Null data byte array");
 		Hash hash = hasher.hash(data);
-//		return hash;
 		Path path = hashToPath(hash);
 		//File doesn't exist, write it out
 		if (Files.notExists(path)) {
-			try {
-				if (path.getParent() != null && Files.notExists(path.getParent())) {
-					Files.createDirectories(path.getParent());
+			//Only one thread per hash; others wait and then find the block written
+			synchronized (writeLocks[(hash.hashCode() & 0x7FFFFFFF) % writeLocks.length]) {
+				//Written but not yet published
+				if (pending.containsKey(hash)) return hash;
+				if (Files.notExists(path)) {
+					return writeBlock(hash, path, data, defer);
 				}
-				Files.write(path, data);
-				return hash;
-			} catch (IOException e) {
-				e.printStackTrace();
-				//Try to rollback the failed write by removing the incomplete block
-				try {
-					Files.deleteIfExists(path);
-				} catch (IOException e1) {
-					//nothing we can do but take it
-					return null;
-				}
-				return null;
 			}
 		}
 		//File exists already, assume it's written before
@@ -70,9 +154,148 @@ public class FileSystemCAS implements CAS {
 		return null;
 	}
 
+	/**
+	 * Publish all pending blocks: sync their temporary files, rename them into place, and sync the
+	 * directories they were placed in. Does nothing if there are no pending blocks.
+	 * @throws IOException if a block cannot be synced or published; unpublished blocks stay pending
+	 */
+	public void sync() throws IOException {
+		synchronized (syncLock) {
+			List<Map.Entry<Hash,Path>> batch = new ArrayList<>(pending.entrySet());
+			for (Map.Entry<Hash,Path> e : batch) {
+				syncFile(e.getValue());
+			}
+			Set<Path> dirs = new HashSet<>();
+			for (Map.Entry<Hash,Path> e : batch) {
+				Path path = hashToPath(e.getKey());
+				Files.move(e.getValue(), path, StandardCopyOption.ATOMIC_MOVE);
+				pending.remove(e.getKey());
+				dirs.add(path.getParent() != null ? path.getParent() : root);
+			}
+			for (Path dir : dirtyDirs) {
+				dirtyDirs.remove(dir);
+				dirs.add(dir);
+			}
+			for (Path dir : dirs) {
+				syncDirectory(dir);
+			}
+		}
+	}
+
+	/*
+	 * Sync if the batch is still full once the sync lock is held. Writers that queued up behind
+	 * another sync find their blocks already published, rather than each syncing a few more.
+	 */
+	private void syncIfFull() throws IOException {
+		synchronized (syncLock) {
+			if (pending.size() >= syncBatchSize) sync();
+		}
+	}
+
+	/*
+	 * Write a block to a temporary file beside its final path. Unless deferred,
+	 * sync the file and rename it into place immediately.
+	 */
+	private Hash writeBlock(Hash hash, Path path, byte[] data, boolean defer) {
+		Path dir = path.getParent() != null ? path.getParent() : root;
+		Path temp = null;
+		try {
+			createDirectories(dir);
+			sweepTemps(dir);
+			temp = Files.createTempFile(dir, "tmp", ".part");
+			try (FileChannel ch = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				ByteBuffer buf = ByteBuffer.wrap(data);
+				while (buf.hasRemaining()) ch.write(buf);
+				if (!defer) ch.force(true);
+			}
+			return publish(hash, path, temp, defer);
+		} catch (IOException e) {
+			e.printStackTrace();
+			//Try to rollback the failed write by removing the incomplete block
+			try {
+				if (temp != null) Files.deleteIfExists(temp);
+			} catch (IOException e1) {
+				//nothing we can do but take it
+				return null;
+			}
+			return null;
+		}
+	}
+
+	/*
+	 * Delete stale temporary files from a directory, the first time this instance looks at it.
+	 */
+	private void sweepTemps(Path dir) {
+		if (!sweptDirs.add(dir)) return;
+		long cutoff = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "tmp*.part")) {
+			for (Path p : ds) {
+				try {
+					if (Files.getLastModifiedTime(p).toMillis() < cutoff) Files.deleteIfExists(p);
+				} catch (IOException e) {
+					//Gone already, or not ours to delete
+				}
+			}
+		} catch (IOException e) {
+			//Can't list it; a later instance will try again
+		}
+	}
+
+	/*
+	 * Create a block directory if needed. New directories need their parent synced to survive a crash.
+	 */
+	private void createDirectories(Path dir) throws IOException {
+		if (Files.notExists(dir)) {
+			for (Path p = dir; p != null && Files.notExists(p); p = p.getParent()) {
+				if (p.getParent() != null) dirtyDirs.add(p.getParent());
+			}
+			Files.createDirectories(dir);
+		}
+	}
+	
+	/*
+	 * Make a written temporary file the block for a hash. Deferred blocks are left pending; otherwise the
+	 * file, which must already be synced, is renamed into place and the directories involved are synced.
+	 */
+	private Hash publish(Hash hash, Path path, Path temp, boolean defer) throws IOException {
+		if (defer) {
+			pending.put(hash, temp);
+			return hash;
+		}
+		Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory(path.getParent() != null ? path.getParent() : root);
+		for (Path d : dirtyDirs) {
+			dirtyDirs.remove(d);
+			syncDirectory(d);
+		}
+		return hash;
+	}
+	
+	private static void syncFile(Path file) throws IOException {
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			ch.force(true);
+		}
+	}
+	
+	private static void syncDirectory(Path dir) {
+		try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+			ch.force(true);
+		} catch (IOException e) {
+			//Not every platform can open or sync a directory; nothing more can be done
+		}
+	}
+
 	@Override
-	public synchronized byte[] read(Hash hash) {
+	public byte[] read(Hash hash) {
 		if (hash == null) throw new NullPointerException("Null hash instance");
+		Path temp = pending.get(hash);
+		if (temp != null) {
+			try {
+				return Files.readAllBytes(temp);
+			} catch (IOException e) {
+				//Published while we were looking; fall through to the final path
+			}
+		}
 		Path path = hashToPath(hash);
 		try {
 			return Files.readAllBytes(path);
@@ -81,17 +304,38 @@ public class FileSystemCAS implements CAS {
 		}
 	}
 
+	/**
+	 * Open a stream over a block file. The file is read as the stream is consumed.
+	 */
+	@Override
+	public InputStream readStream(Hash hash) throws IOException {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		Path temp = pending.get(hash);
+		if (temp != null) {
+			try {
+				return Files.newInputStream(temp);
+			} catch (IOException e) {
+				//Published while we were looking; fall through to the final path
+			}
+		}
+		return Files.newInputStream(hashToPath(hash));
+	}
+
 	@Override
-	public synchronized boolean exists(Hash hash) {
+	public boolean exists(Hash hash) {
 		if (hash == null) throw new NullPointerException("Null hash instance");
+		if (pending.containsKey(hash)) return true;
 		Path path = hashToPath(hash);
 		return Files.isReadable(path);
 	}
 	
 	@Override
-	public synchronized List<Hash> suggest(Hash prefix) {
+	public List<Hash> suggest(Hash prefix) {
 		List<Hash> hashes = new ArrayList<>();
 		String hashString = prefix.toString();
+		for (Hash h : pending.keySet()) {
+			if (h.toString().startsWith(hashString)) hashes.add(h);
+		}
 		String first = "";
 		String rest = "";
 		int hlen = hashString.length();
@@ -105,7 +349,7 @@ public class FileSystemCAS implements CAS {
 			rest = hashString.substring(4);
 		}
 		Path dir = hashToDir(prefix);
-		if (!Files.isDirectory(dir)) return Collections.emptyList();
+		if (!Files.isDirectory(dir)) return hashes;
 		DirectoryStream<Path> ds = null;
 		try {
 			ds = Files.newDirectoryStream(dir, rest + "*");
@@ -131,6 +375,36 @@ public class FileSystemCAS implements CAS {
 		}
 	}
 
+	/**
+	 * List the blocks by walking the block directories. Pending blocks are included.
+	 */
+	@Override
+	public void forEachHash(Consumer<Hash> action) {
+		pending.keySet().forEach(action);
+		if (!Files.isDirectory(root)) return;
+		try {
+			Files.walkFileTree(root, Collections.emptySet(), 3, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if (!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+					//The hash is the path below the root with the separators taken out
+					StringBuilder sb = new StringBuilder();
+					for (Path part : root.relativize(file)) {
+						sb.append(part.toString());
+					}
+					try {
+						action.accept(new Hash(sb.toString()));
+					} catch (IllegalArgumentException ex) {
+						//Temporary file or something else that isn't a block
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
 	private Path hashToPath(Hash hash) {
 		String hashString = hash.toString();
 		int hlen = hashString.length();
@@ -165,5 +439,130 @@ public class FileSystemCAS implements CAS {
 
 	@Override
 	public void close() throws IOException {
+		sync();
+	}
+	
+	/*
+	 * Hashes a block as it is written and spools it to a temporary file in the root directory. On close
+	 * the file is moved to the block's path, or discarded if the block is already stored.
+	 */
+	private final class BlockOutputStream extends HashOutputStream {
+		private final Path temp;
+		private final FileChannel channel;
+		private final Hasher.Digest digest;
+		private final ByteBuffer buffer = ByteBuffer.allocate(65536);
+		private Hash hash;
+		private boolean closed;
+		
+		BlockOutputStream() throws IOException {
+			createDirectories(root);
+			temp = Files.createTempFile(root, "tmp", ".part");
+			try {
+				channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+			} catch (IOException e) {
+				Files.deleteIfExists(temp);
+				throw e;
+			}
+			digest = hasher.newDigest();
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			if (closed) throw new IOException("Stream closed");
+			if (!buffer.hasRemaining()) drain();
+			buffer.put((byte) b);
+		}
+		
+		@Override
+		public void write(byte[] b) throws IOException {
+			write(b, 0, b.length);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) throw new IOException("Stream closed");
+			if (len > buffer.remaining()) drain();
+			if (len >= buffer.capacity()) {
+				//Too big to be worth copying
+				ByteBuffer src = ByteBuffer.wrap(b, off, len);
+				digest.update(b, off, len);
+				while (src.hasRemaining()) channel.write(src);
+			} else {
+				buffer.put(b, off, len);
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			if (closed) throw new IOException("Stream closed");
+			drain();
+		}
+		
+		private void drain() throws IOException {
+			buffer.flip();
+			digest.update(buffer.duplicate());
+			while (buffer.hasRemaining()) channel.write(buffer);
+			buffer.clear();
+		}
+		
+		/**
+		 * Store the block. The hash is available after this call.
+		 * @throws IOException if the block could not be stored
+		 */
+		@Override
+		public void close() throws IOException {
+			if (closed) return;
+			closed = true;
+			boolean defer = syncBatchSize > 1;
+			Hash h;
+			try {
+				drain();
+				if (!defer) channel.force(true);
+				channel.close();
+				h = digest.finish();
+				Path path = hashToPath(h);
+				synchronized (writeLocks[(h.hashCode() & 0x7FFFFFFF) % writeLocks.length]) {
+					if (pending.containsKey(h) || Files.exists(path)) {
+						//Already stored, assume it's written before
+						Files.delete(temp);
+						if (!pending.containsKey(h) && !Files.isRegularFile(path)) {
+							throw new IOException("Block path " + path + " is not a file");
+						}
+					} else {
+						createDirectories(path.getParent() != null ? path.getParent() : root);
+						publish(h, path, temp, defer);
+					}
+				}
+			} catch (IOException e) {
+				channel.close();
+				Files.deleteIfExists(temp);
+				throw e;
+			}
+			if (pending.size() >= syncBatchSize) syncIfFull();
+			hash = h;
+		}
+		
+		/**
+		 * Discard the spooled data without storing a block.
+		 * @throws IOException if the temporary file could not be removed
+		 */
+		@Override
+		public void abort() throws IOException {
+			if (closed) return;
+			closed = true;
+			try {
+				channel.close();
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		}
+		
+		@Override
+		public Hash getHash() {
+			if (hash == null) {
+				throw new IllegalStateException("Stream is not closed yet");
+			}
+			return hash;
+		}
 	}
 }
@@ -0,0 +1,169 @@
+package lwhitelaw.cas.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Consumer;
+
+import lwhitelaw.cas.CAS;
+import lwhitelaw.cas.Hash;
+import lwhitelaw.cas.HashOutputStream;
+
+/**
+ * Answers existence checks for blocks that aren't stored from an in-memory membership filter, without going to
+ * the CAS underneath. The filter is filled from {@link CAS#forEachHash(Consumer)} when this is constructed, and
+ * every block written through this instance is added to it. Checks the filter can't rule out go through to the
+ * CAS as usual. If the CAS cannot list its blocks, every check goes through. Reads always go to the CAS, as a
+ * read of a missing block is no more expensive than the check would be.
+ * <p>
+ * Blocks written to the CAS other than through this instance after construction are reported as not existing,
+ * although they can still be read. Thread safe if the CAS underneath is.
+ *
+ */
+public class FilteredCAS implements CAS {
+	private final CAS cas;
+	private final MembershipFilter filter;
+	private final boolean active;
+
+	/**
+	 * Wrap a CAS, filling the filter with every block it holds.
+	 * @param cas the CAS to wrap
+	 * @param filter an empty filter
+	 */
+	public FilteredCAS(CAS cas, MembershipFilter filter) {
+		if (cas == null) throw new NullPointerException("Null CAS");
+		if (filter == null) throw new NullPointerException("Null filter");
+		this.cas = cas;
+		this.filter = filter;
+		boolean filled;
+		try {
+			cas.forEachHash(filter::add);
+			filled = true;
+		} catch (UnsupportedOperationException ex) {
+			filled = false;
+		} catch (UncheckedIOException ex) {
+			System.err.println("warning: cannot list blocks, lookups will not be filtered");
+			ex.printStackTrace();
+			filled = false;
+		}
+		this.active = filled;
+	}
+
+	/**
+	 * Check whether a block might be stored.
+	 * @param hash the hash to check
+	 * @return false if the block is definitely not stored
+	 */
+	private boolean mightExist(Hash hash) {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		return !active || filter.mightContain(hash);
+	}
+
+	@Override
+	public Hash write(byte[] data) {
+		Hash h = cas.write(data);
+		if (h != null) filter.add(h);
+		return h;
+	}
+
+	@Override
+	public List<Hash> writeAll(List<byte[]> blocks) {
+		List<Hash> hashes = cas.writeAll(blocks);
+		for (Hash h : hashes) {
+			if (h != null) filter.add(h);
+		}
+		return hashes;
+	}
+
+	@Override
+	public HashOutputStream writeStream() throws IOException {
+		return new FilteredOutputStream(cas.writeStream());
+	}
+
+	@Override
+	public byte[] read(Hash hash) {
+		return cas.read(hash);
+	}
+
+	@Override
+	public ByteBuffer readBuffer(Hash hash) {
+		return cas.readBuffer(hash);
+	}
+
+	@Override
+	public InputStream readStream(Hash hash) throws IOException {
+		return cas.readStream(hash);
+	}
+
+	@Override
+	public boolean exists(Hash hash) {
+		return mightExist(hash) && cas.exists(hash);
+	}
+
+	@Override
+	public List<Hash> suggest(Hash prefix) {
+		return cas.suggest(prefix);
+	}
+
+	@Override
+	public void forEachHash(Consumer<Hash> action) {
+		cas.forEachHash(action);
+	}
+
+	@Override
+	public void close() throws Exception {
+		cas.close();
+	}
+
+	/*
+	 * Passes everything through to the wrapped CAS's stream and adds the block to the filter once stored.
+	 */
+	private final class FilteredOutputStream extends HashOutputStream {
+		private final HashOutputStream out;
+		private boolean aborted;
+
+		FilteredOutputStream(HashOutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b) throws IOException {
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (aborted) return;
+			out.close();
+			filter.add(out.getHash());
+		}
+
+		@Override
+		public void abort() throws IOException {
+			aborted = true;
+			out.abort();
+		}
+
+		@Override
+		public Hash getHash() {
+			return out.getHash();
+		}
+	}
+}
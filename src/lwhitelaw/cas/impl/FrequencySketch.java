@@ -0,0 +1,93 @@
+package lwhitelaw.cas.impl;
+
+import lwhitelaw.cas.Hash;
+
+/**
+ * Estimates how often each hash has been seen recently, for deciding which blocks are worth keeping in a cache.
+ * This is a count-min sketch of four-bit counters, four to a hash, with each estimate the smallest of the four.
+ * Estimates may be too high but never too low, and stop at 15. All counters are halved once enough hashes have
+ * been counted, so old popularity fades. Not thread safe.
+ *
+ */
+final class FrequencySketch {
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private final long[] table;
+	private final int mask;
+	private final int sampleSize;
+	private int additions;
+
+	/**
+	 * Create a sketch.
+	 * @param expected the number of distinct hashes expected to be live at once
+	 */
+	FrequencySketch(int expected) {
+		//Sixteen counters per long, so this is four counters per expected hash
+		int width = Integer.highestOneBit(Math.max(16, Math.min(expected, 1 << 26)) - 1) << 1;
+		width = Math.max(4, width >>> 2);
+		this.table = new long[width];
+		this.mask = width - 1;
+		this.sampleSize = 10 * Math.max(16, Math.min(expected, 1 << 26));
+	}
+
+	/**
+	 * Count one occurrence of a hash.
+	 * @param hash the hash seen
+	 */
+	void increment(Hash hash) {
+		long h = spread(hash);
+		boolean added = false;
+		for (int i = 0; i < 4; i++) {
+			long x = mix(h + i * 0x9E3779B97F4A7C15L);
+			int index = (int) (x >>> 32) & mask;
+			int shift = ((int) x & 15) << 2;
+			if (((table[index] >>> shift) & 15) < 15) {
+				table[index] += 1L << shift;
+				added = true;
+			}
+		}
+		if (added && ++additions >= sampleSize) reset();
+	}
+
+	/**
+	 * Estimate how many times a hash has been seen recently.
+	 * @param hash the hash to look up
+	 * @return the estimate, from 0 to 15
+	 */
+	int frequency(Hash hash) {
+		long h = spread(hash);
+		int freq = 15;
+		for (int i = 0; i < 4; i++) {
+			long x = mix(h + i * 0x9E3779B97F4A7C15L);
+			int index = (int) (x >>> 32) & mask;
+			int shift = ((int) x & 15) << 2;
+			freq = Math.min(freq, (int) ((table[index] >>> shift) & 15));
+		}
+		return freq;
+	}
+
+	/*
+	 * Halve every counter. Each counter's low bit would shift into its neighbour, so it is masked off.
+	 */
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions >>>= 1;
+	}
+
+	private static long spread(Hash hash) {
+		byte[] b = hash.hashContents();
+		if (b.length < 8) return mix(hash.hashCode());
+		long v = 0;
+		for (int i = 0; i < 8; i++) {
+			v = (v << 8) | (b[i] & 0xFF);
+		}
+		return v;
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,80 @@
+package lwhitelaw.cas.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+
+import lwhitelaw.cas.Hasher;
+
+/**
+ * Looks up hashers by algorithm name, and records which algorithm a store uses in a marker file in the store's
+ * root directory. Hashes from different algorithms can't be mixed in one store. A store without a marker was
+ * created before markers existed and uses SHA3-256.
+ *
+ */
+public final class Hashers {
+	public static final String SHA3_256 = "SHA3-256";
+	public static final String BLAKE3 = "BLAKE3";
+	/** The name of the marker file. Not a valid hex string, so it is never mistaken for a block. */
+	public static final String MARKER = "hasher";
+
+	private Hashers() {}
+
+	/**
+	 * Create a hasher for an algorithm.
+	 * @param name the algorithm name, in any case
+	 * @return a new hasher
+	 * @throws NoSuchAlgorithmException if the algorithm is unknown or not supported by this JVM
+	 */
+	public static Hasher forName(String name) throws NoSuchAlgorithmException {
+		if (SHA3_256.equalsIgnoreCase(name)) return new SHA3Hasher();
+		if (BLAKE3.equalsIgnoreCase(name)) return new Blake3Hasher();
+		throw new NoSuchAlgorithmException("Unknown hash algorithm " + name);
+	}
+
+	/**
+	 * Read the algorithm recorded for a store.
+	 * @param root the store's root directory
+	 * @return the algorithm name, SHA3-256 if none is recorded
+	 * @throws IOException if the marker exists but cannot be read
+	 */
+	public static String readMarker(Path root) throws IOException {
+		try {
+			return new String(Files.readAllBytes(root.resolve(MARKER)), StandardCharsets.UTF_8).trim();
+		} catch (NoSuchFileException ex) {
+			return SHA3_256;
+		}
+	}
+
+	/**
+	 * Record the algorithm a store uses, creating the root directory if needed.
+	 * @param root the store's root directory
+	 * @param name the algorithm name
+	 * @throws IOException if the marker cannot be written
+	 */
+	public static void writeMarker(Path root, String name) throws IOException {
+		Files.createDirectories(root);
+		Path temp = Files.createTempFile(root, "tmp", ".part");
+		try {
+			Files.write(temp, (name + "\n").getBytes(StandardCharsets.UTF_8));
+			Files.move(temp, root.resolve(MARKER), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Create a hasher for the algorithm recorded for a store.
+	 * @param root the store's root directory
+	 * @return a new hasher
+	 * @throws IOException if the marker cannot be read
+	 * @throws NoSuchAlgorithmException if the recorded algorithm is unknown or not supported by this JVM
+	 */
+	public static Hasher forStore(Path root) throws IOException, NoSuchAlgorithmException {
+		return forName(readMarker(root));
+	}
+}
@@ -0,0 +1,75 @@
+package lwhitelaw.cas.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import lwhitelaw.cas.Hash;
+
+/**
+ * Appends block records to a log file channel with positional writes, gathering small records into one buffer
+ * so that a batch goes out in a few large writes. It neither moves nor depends on the channel's position. The
+ * buffer is kept between batches, so a store needs only one appender. Not thread safe; callers are expected to
+ * hold a lock around the log.
+ *
+ */
+final class LogAppender {
+	private final ByteBuffer buffer = ByteBuffer.allocate(65536);
+	private FileChannel channel;
+	//File offset of the start of the buffer
+	private long position;
+
+	/**
+	 * Start appending to a channel, dropping anything appended before and not yet written.
+	 * @param channel the log channel
+	 * @param position the offset to append at
+	 */
+	void start(FileChannel channel, long position) {
+		this.channel = channel;
+		this.position = position;
+		buffer.clear();
+	}
+
+	/**
+	 * Append a record. It may be buffered until a later call.
+	 * @param hash the hash of the block
+	 * @param data the block data
+	 * @return the offset of the block data in the log
+	 * @throws IOException if the log cannot be written
+	 */
+	long append(Hash hash, byte[] data) throws IOException {
+		byte[] hashbytes = hash.hashContents();
+		if (buffer.remaining() < 1 + hashbytes.length + 4) drain();
+		buffer.put((byte) hashbytes.length);
+		buffer.put(hashbytes);
+		buffer.putInt(data.length & 0x7FFFFFFF);
+		long dataptr = position + buffer.position();
+		if (data.length <= buffer.remaining()) {
+			buffer.put(data);
+		} else {
+			drain();
+			write(ByteBuffer.wrap(data));
+		}
+		return dataptr;
+	}
+
+	/**
+	 * Write out every record appended so far.
+	 * @return the offset just past the last record
+	 * @throws IOException if the log cannot be written
+	 */
+	long finish() throws IOException {
+		drain();
+		return position;
+	}
+
+	private void drain() throws IOException {
+		buffer.flip();
+		write(buffer);
+		buffer.clear();
+	}
+
+	private void write(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) position += channel.write(buf, position);
+	}
+}
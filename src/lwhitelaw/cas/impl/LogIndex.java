@@ -0,0 +1,252 @@
+package lwhitelaw.cas.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import lwhitelaw.cas.Hash;
+import lwhitelaw.cas.Hash256Map;
+
+/**
+ * An index of block locations for a log file of block records. The index is held in memory and mirrored
+ * to an append-only index file so that it does not have to be rebuilt every time the log is opened.
+ * If the index file is missing or does not agree with the log, it is rebuilt with one sequential scan.
+ * If the index is behind the log (for example, after a crash), only the unindexed tail is scanned.
+ * Not thread safe; callers are expected to hold a lock around the log.
+ *
+ */
+final class LogIndex {
+	private static final byte[] MAGIC = "LIDX".getBytes();
+	private final Path indexPath;
+	private final Map<Hash,Entry> entries = new Hash256Map<>();
+	private DataOutputStream out;
+	private long end;
+
+	/**
+	 * Open or rebuild the index for a log. An incomplete record header at the end of the log is cut off. A record
+	 * whose length runs past the end of the log is treated as corruption instead, since the length may be wrong
+	 * and followed by good records that truncating would destroy.
+	 * @param indexPath the path of the index file
+	 * @param log the log to index
+	 * @throws IOException if the index or log cannot be read or written, or the log is corrupt
+	 */
+	LogIndex(Path indexPath, RandomAccessFile log) throws IOException {
+		this.indexPath = indexPath;
+		long loglength = log.length();
+		long goodlength = load(loglength);
+		if (goodlength < 0) {
+			//Missing or stale; start over from the beginning of the log
+			entries.clear();
+			end = 0;
+			goodlength = 0;
+		}
+		try (RandomAccessFile idx = new RandomAccessFile(indexPath.toFile(), "rw")) {
+			if (goodlength == 0) {
+				idx.setLength(0);
+				idx.write(MAGIC);
+				goodlength = MAGIC.length;
+			}
+			//Cut off any partially written entry
+			idx.setLength(goodlength);
+		}
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexPath.toFile(), true)));
+		try {
+			scan(log, loglength);
+		} catch (IOException ex) {
+			out.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Get the location of a block in the log.
+	 * @param hash the hash to look up
+	 * @return the entry, or null if the block is not in the log
+	 */
+	Entry get(Hash hash) {
+		return entries.get(hash);
+	}
+
+	/**
+	 * Record that a block has been appended to the log.
+	 * @param hash the hash of the block
+	 * @param offset the offset of the block data in the log
+	 * @param length the length of the block data
+	 * @throws IOException if the index file cannot be written
+	 */
+	void add(Hash hash, long offset, int length) throws IOException {
+		Entry e = new Entry(offset, length);
+		entries.put(hash, e);
+		byte[] hashbytes = hash.hashContents();
+		out.writeByte(hashbytes.length & 0xFF);
+		out.write(hashbytes);
+		out.writeLong(offset);
+		out.writeInt(length);
+		if (offset + length > end) end = offset + length;
+	}
+
+	/**
+	 * Return the set of indexed hashes.
+	 * @return the hashes in the log
+	 */
+	Set<Hash> hashes() {
+		return entries.keySet();
+	}
+
+	/**
+	 * Return the end of the last complete record in the log. New records should be written here.
+	 * @return the end offset
+	 */
+	long end() {
+		return end;
+	}
+
+	/**
+	 * Flush buffered index entries to the index file.
+	 * @throws IOException if the index file cannot be written
+	 */
+	void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Flush and close the index file.
+	 * @throws IOException if the index file cannot be written
+	 */
+	void close() throws IOException {
+		out.close();
+	}
+
+	/*
+	 * Read the index file into memory. Returns the length of the valid part of the index file,
+	 * or -1 if the index file should be rebuilt.
+	 */
+	private long load(long loglength) {
+		if (!Files.isRegularFile(indexPath)) return -1;
+		try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+			byte[] start = new byte[MAGIC.length];
+			dis.readFully(start);
+			if (!Arrays.equals(MAGIC, start)) return -1;
+			long good = MAGIC.length;
+			for (;;) {
+				int hsize;
+				try {
+					hsize = dis.readUnsignedByte();
+				} catch (EOFException ex) {
+					return good;
+				}
+				try {
+					byte[] hdata = new byte[hsize];
+					dis.readFully(hdata);
+					long offset = dis.readLong();
+					int length = dis.readInt();
+					//Index entry pointing past the log means the log lost data the index didn't
+					if (offset < 0 || length < 0 || offset + length > loglength) return -1;
+					entries.put(new Hash(hdata), new Entry(offset, length));
+					if (offset + length > end) end = offset + length;
+					good += 1 + hsize + 8 + 4;
+				} catch (EOFException ex) {
+					//Partially written entry
+					return good;
+				}
+			}
+		} catch (IOException ex) {
+			return -1;
+		}
+	}
+
+	/*
+	 * Index every complete record from the current end to the end of the log, then cut off
+	 * a trailing partial header. The log is left alone if a record overruns it.
+	 */
+	private void scan(RandomAccessFile log, long loglength) throws IOException {
+		log.seek(end);
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new RandomAccessFileInputStream(log), 65536));
+		long pos = end;
+		while (pos < loglength) {
+			int hsize;
+			byte[] hdata;
+			int dsize;
+			try {
+				hsize = dis.readUnsignedByte();
+				hdata = new byte[hsize];
+				dis.readFully(hdata);
+				dsize = dis.readInt();
+			} catch (EOFException ex) {
+				//Header cut off by the end of the log
+				break;
+			}
+			long dataOffset = pos + 1 + hsize + 4;
+			if (dsize < 0 || dataOffset + dsize > loglength) {
+				out.flush();
+				throw new IOException("Corrupt record at offset " + pos + " of " + loglength + " byte log");
+			}
+			long skip = dsize;
+			while (skip > 0) {
+				long skipped = dis.skip(skip);
+				if (skipped <= 0) throw new EOFException();
+				skip -= skipped;
+			}
+			add(new Hash(hdata), dataOffset, dsize);
+			pos = dataOffset + dsize;
+		}
+		end = pos;
+		if (loglength > end) {
+			log.setLength(end);
+		}
+		out.flush();
+	}
+
+	/**
+	 * The location of a block's data in the log.
+	 */
+	static final class Entry {
+		final long offset;
+		final int length;
+
+		Entry(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/*
+	 * Reads sequentially from the current position of a random access file.
+	 */
+	private static final class RandomAccessFileInputStream extends InputStream {
+		private final RandomAccessFile file;
+
+		RandomAccessFileInputStream(RandomAccessFile file) {
+			this.file = file;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return file.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return file.read(b, off, len);
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long pos = file.getFilePointer();
+			long target = Math.min(pos + n, file.length());
+			file.seek(target);
+			return target - pos;
+		}
+	}
+}
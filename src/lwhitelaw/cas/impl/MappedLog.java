@@ -0,0 +1,56 @@
+package lwhitelaw.cas.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Memory-maps a log file in fixed-size windows and hands out read-only slices of it. Windows are mapped
+ * on first use and remapped when a read lands past the end of what was mapped, so the log may keep growing.
+ * A slice crossing a window boundary is mapped on its own. Not thread safe; callers are expected to hold a
+ * lock around the log.
+ *
+ */
+final class MappedLog {
+	private static final long WINDOW = 1L << 30;
+	private final FileChannel channel;
+	private MappedByteBuffer[] windows = new MappedByteBuffer[0];
+
+	MappedLog(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Get a read-only view of part of the log.
+	 * @param offset the offset of the data
+	 * @param length the length of the data
+	 * @return a read-only buffer positioned at zero with the given length
+	 * @throws IOException if the log cannot be mapped
+	 */
+	ByteBuffer slice(long offset, int length) throws IOException {
+		int w = (int) (offset / WINDOW);
+		long wstart = w * WINDOW;
+		long end = offset + length;
+		if (end > wstart + WINDOW) {
+			//Straddles two windows; not worth keeping around
+			return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+		}
+		if (w >= windows.length) {
+			windows = Arrays.copyOf(windows, w + 1);
+		}
+		MappedByteBuffer window = windows[w];
+		if (window == null || wstart + window.capacity() < end) {
+			long size = Math.min(WINDOW, channel.size() - wstart);
+			if (wstart + size < end) throw new IOException("Read past end of log");
+			window = channel.map(FileChannel.MapMode.READ_ONLY, wstart, size);
+			windows[w] = window;
+		}
+		ByteBuffer view = window.duplicate();
+		int pos = (int) (offset - wstart);
+		view.position(pos);
+		view.limit(pos + length);
+		return view.slice();
+	}
+}
@@ -0,0 +1,22 @@
+package lwhitelaw.cas.impl;
+
+import lwhitelaw.cas.Hash;
+
+/**
+ * An approximate set of hashes held in memory. A filter may answer that it might contain a hash it was never
+ * given, but never that it doesn't contain one it was given. Implementations must be thread safe.
+ *
+ */
+public interface MembershipFilter {
+	/**
+	 * Add a hash to the filter.
+	 * @param hash the hash to add
+	 */
+	void add(Hash hash);
+	/**
+	 * Check whether a hash might have been added. A false result is certain; a true result may be wrong.
+	 * @param hash the hash to check
+	 * @return false if the hash was definitely never added
+	 */
+	boolean mightContain(Hash hash);
+}
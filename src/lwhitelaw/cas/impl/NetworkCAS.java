@@ -1,11 +1,13 @@
 package lwhitelaw.cas.impl;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
@@ -68,6 +70,61 @@ public class NetworkCAS implements CAS {
 		}
 	}
 
+	/**
+	 * Write a batch of blocks in one round trip. Servers that do not understand batch writes
+	 * will drop the connection, failing the whole batch.
+	 */
+	@Override
+	public List<Hash> writeAll(List<byte[]> blocks) {
+		if (blocks == null) throw new NullPointerException("Null block list");
+		synchronized (lock) {
+			Socket sock = null;
+			try {
+				sock = connectSocket();
+				DataOutputStream os = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), 65536));
+				os.writeByte(0x04);
+				os.writeInt(blocks.size());
+				for (byte[] data : blocks) {
+					if (data == null) throw new NullPointerException("Null data byte array");
+					os.writeInt(data.length);
+					os.write(data);
+				}
+				os.flush();
+				DataInputStream is = new DataInputStream(sock.getInputStream());
+				byte responseCode = is.readByte();
+				switch (responseCode) {
+				case 0x05: //success
+					int hlistsize = is.readInt();
+					if (hlistsize != blocks.size()) {
+						//Not a reply to this batch; the rest of the stream can't be trusted either
+						System.err.println("Server returned " + hlistsize + " hashes for " + blocks.size() + " blocks");
+						close();
+						return Arrays.asList(new Hash[blocks.size()]);
+					}
+					Hash[] hashes = new Hash[hlistsize];
+					for (int i = 0; i < hlistsize; i++) {
+						int hsize = is.readUnsignedByte();
+						if (hsize == 0) continue; //this block failed
+						byte[] harray = new byte[hsize];
+						is.readFully(harray);
+						hashes[i] = new Hash(harray);
+					}
+					return Arrays.asList(hashes);
+				case 0x03: //fail
+					return Arrays.asList(new Hash[blocks.size()]);
+				default: //unknown response
+					System.err.println("Server returned illegal response: " + responseCode);
+					return Arrays.asList(new Hash[blocks.size()]);
+				}
+			} catch (IOException e) {
+				System.err.println("NetworkCAS WRITE BATCH error");
+				e.printStackTrace();
+				close();
+				return Arrays.asList(new Hash[blocks.size()]);
+			}
+		}
+	}
+
 	@Override
 	public byte[] read(Hash hash) {
 		synchronized (lock) {
@@ -208,6 +265,17 @@ public class NetworkCAS implements CAS {
  * 	byte[size] hash;
  * }
  * 
+ * ClientToServerWriteBatch {
+ * 	0x04;
+ * 	int32 count;
+ * 	Block[count] blocks;
+ * }
+ * 
+ * Block {
+ * 	int32 size;
+ * 	byte[size] data;
+ * }
+ * 
  * Receive
  * ServerToClientBlockHash {
  *  0x00;
@@ -229,6 +297,12 @@ public class NetworkCAS implements CAS {
  *  0x03;
  * }
  * 
+ * ServerToClientBlockHashes {
+ *  0x05;
+ *  int32 count;
+ *  Hash[count] hashes; (size 0 for a block that failed to write)
+ * }
+ * 
  * 
  * 
  *
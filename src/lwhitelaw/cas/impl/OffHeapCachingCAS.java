@@ -0,0 +1,326 @@
+package lwhitelaw.cas.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.function.Consumer;
+
+import lwhitelaw.cas.CAS;
+import lwhitelaw.cas.Hash;
+import lwhitelaw.cas.HashOutputStream;
+
+/*
+ * Slab entry {
+ * 	ubyte hashLength
+ * 	byte[hashLength] hash
+ * 	int length
+ * 	byte[length] data
+ * }
+ */
+/**
+ * Keeps read blocks in direct memory in front of another CAS, so a cache of many gigabytes puts nothing on the
+ * garbage collected heap but its index. The budget is split into slabs which are filled one after another, each
+ * block appended to the current slab. When the slabs are all full, the oldest slab is emptied and reused, evicting
+ * every block in it. The index is an open-addressing table of primitive arrays, keyed by the leading bytes of the
+ * hash; the full hash is stored with each block and checked on lookup.
+ * <p>
+ * A block is only admitted once it has been read at least twice recently, as estimated by a frequency sketch, so a
+ * single pass over a large restore doesn't wash out blocks that are read repeatedly. Blocks larger than a slab are
+ * never cached. Arrays and buffers returned are copies. The JVM's direct memory limit
+ * (-XX:MaxDirectMemorySize) must allow for the budget. Thread safe if the CAS underneath is.
+ *
+ */
+public class OffHeapCachingCAS implements CAS {
+	public static final int DEFAULT_SLAB_SIZE = 64*1048576;
+	private static final int ADMIT_FREQUENCY = 2;
+	private final CAS cas;
+	private final ByteBuffer[] slabs;
+	private final int[] fill;
+	private final FrequencySketch sketch;
+	private int current;
+	//Open-addressing index: fingerprint 0 marks an empty slot; location is slab << 32 | offset
+	private long[] fingerprints;
+	private long[] locations;
+	private int size;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Wrap a CAS with an off-heap cache using the default slab size.
+	 * @param cas the CAS to cache blocks from
+	 * @param budget the bytes of direct memory to use
+	 */
+	public OffHeapCachingCAS(CAS cas, long budget) {
+		this(cas, budget, DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * Wrap a CAS with an off-heap cache.
+	 * @param cas the CAS to cache blocks from
+	 * @param budget the bytes of direct memory to use, rounded up to whole slabs
+	 * @param slabSize the size of each slab, which is also the largest block cached
+	 */
+	public OffHeapCachingCAS(CAS cas, long budget, int slabSize) {
+		if (cas == null) throw new NullPointerException("Null CAS");
+		if (budget < 1 || slabSize < 1) throw new IllegalArgumentException("Budget and slab size must be positive");
+		long count = (budget + slabSize - 1) / slabSize;
+		if (count > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many slabs");
+		this.cas = cas;
+		//At least two slabs, so emptying one never empties the whole cache
+		this.slabs = new ByteBuffer[(int) Math.max(2, count)];
+		for (int i = 0; i < slabs.length; i++) {
+			slabs[i] = ByteBuffer.allocateDirect(slabSize);
+		}
+		this.fill = new int[slabs.length];
+		int expected = (int) Math.min(1 << 24, Math.max(1024, budget / 16384));
+		this.sketch = new FrequencySketch(expected);
+		int capacity = Integer.highestOneBit(expected - 1) << 2;
+		this.fingerprints = new long[capacity];
+		this.locations = new long[capacity];
+	}
+
+	/**
+	 * Return the number of reads answered from the cache.
+	 * @return the hit count
+	 */
+	public synchronized long hitCount() {
+		return hits;
+	}
+
+	/**
+	 * Return the number of reads that went to the CAS underneath.
+	 * @return the miss count
+	 */
+	public synchronized long missCount() {
+		return misses;
+	}
+
+	/*
+	 * Copy a cached block out and count the access. Returns null if it is not cached.
+	 */
+	private synchronized byte[] lookup(Hash hash) {
+		sketch.increment(hash);
+		int slot = find(hash);
+		if (slot < 0) {
+			misses++;
+			return null;
+		}
+		hits++;
+		long loc = locations[slot];
+		ByteBuffer slab = slabs[(int) (loc >>> 32)];
+		int pos = (int) loc;
+		int hlen = slab.get(pos) & 0xFF;
+		byte[] data = new byte[slab.getInt(pos + 1 + hlen)];
+		ByteBuffer view = slab.duplicate();
+		view.position(pos + 1 + hlen + 4);
+		view.get(data);
+		return data;
+	}
+
+	private byte[] fetch(Hash hash) {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		byte[] data = lookup(hash);
+		if (data != null) return data;
+		data = cas.read(hash);
+		if (data != null) admit(hash, data);
+		return data;
+	}
+
+	private synchronized void admit(Hash hash, byte[] data) {
+		byte[] hb = hash.hashContents();
+		int entryLength = 1 + hb.length + 4 + data.length;
+		if (entryLength > slabs[0].capacity()) return;
+		if (sketch.frequency(hash) < ADMIT_FREQUENCY || find(hash) >= 0) return;
+		if (fill[current] + entryLength > slabs[current].capacity()) {
+			current = (current + 1) % slabs.length;
+			empty(current);
+		}
+		ByteBuffer slab = slabs[current];
+		int pos = fill[current];
+		slab.put(pos, (byte) hb.length);
+		ByteBuffer view = slab.duplicate();
+		view.position(pos + 1);
+		view.put(hb);
+		view.putInt(data.length);
+		view.put(data);
+		fill[current] = pos + entryLength;
+		insert(hash, (long) current << 32 | pos);
+	}
+
+	/*
+	 * Evict every block in a slab, walking its entries to find their hashes.
+	 */
+	private void empty(int index) {
+		ByteBuffer slab = slabs[index];
+		int pos = 0;
+		while (pos < fill[index]) {
+			int hlen = slab.get(pos) & 0xFF;
+			byte[] hb = new byte[hlen];
+			ByteBuffer view = slab.duplicate();
+			view.position(pos + 1);
+			view.get(hb);
+			int length = view.getInt();
+			remove(new Hash(hb), (long) index << 32 | pos);
+			pos += 1 + hlen + 4 + length;
+		}
+		fill[index] = 0;
+	}
+
+	/*
+	 * Return the index slot holding a hash, or -1.
+	 */
+	private int find(Hash hash) {
+		long fp = fingerprint(hash);
+		int mask = fingerprints.length - 1;
+		for (int i = home(fp, mask); fingerprints[i] != 0; i = (i + 1) & mask) {
+			if (fingerprints[i] == fp && matches(hash, locations[i])) return i;
+		}
+		return -1;
+	}
+
+	private boolean matches(Hash hash, long loc) {
+		byte[] hb = hash.hashContents();
+		ByteBuffer slab = slabs[(int) (loc >>> 32)];
+		int pos = (int) loc;
+		if ((slab.get(pos) & 0xFF) != hb.length) return false;
+		for (int i = 0; i < hb.length; i++) {
+			if (slab.get(pos + 1 + i) != hb[i]) return false;
+		}
+		return true;
+	}
+
+	private void insert(Hash hash, long loc) {
+		if ((size + 1) * 4L > fingerprints.length * 3L) grow();
+		long fp = fingerprint(hash);
+		int mask = fingerprints.length - 1;
+		int i = home(fp, mask);
+		while (fingerprints[i] != 0) i = (i + 1) & mask;
+		fingerprints[i] = fp;
+		locations[i] = loc;
+		size++;
+	}
+
+	/*
+	 * Remove the index entry for a block at a location. Later entries in the same run are shifted back
+	 * into the gap so that lookups never stop early.
+	 */
+	private void remove(Hash hash, long loc) {
+		long fp = fingerprint(hash);
+		int mask = fingerprints.length - 1;
+		int i = home(fp, mask);
+		while (fingerprints[i] != 0 && !(fingerprints[i] == fp && locations[i] == loc)) i = (i + 1) & mask;
+		if (fingerprints[i] == 0) return;
+		size--;
+		int gap = i;
+		for (int j = (gap + 1) & mask; fingerprints[j] != 0; j = (j + 1) & mask) {
+			int h = home(fingerprints[j], mask);
+			//Move the entry back if its home slot isn't cyclically between the gap and where it is
+			if (((j - h) & mask) >= ((j - gap) & mask)) {
+				fingerprints[gap] = fingerprints[j];
+				locations[gap] = locations[j];
+				gap = j;
+			}
+		}
+		fingerprints[gap] = 0;
+		locations[gap] = 0;
+	}
+
+	private void grow() {
+		long[] oldFingerprints = fingerprints;
+		long[] oldLocations = locations;
+		fingerprints = new long[oldFingerprints.length * 2];
+		locations = new long[oldLocations.length * 2];
+		int mask = fingerprints.length - 1;
+		for (int k = 0; k < oldFingerprints.length; k++) {
+			if (oldFingerprints[k] == 0) continue;
+			int i = home(oldFingerprints[k], mask);
+			while (fingerprints[i] != 0) i = (i + 1) & mask;
+			fingerprints[i] = oldFingerprints[k];
+			locations[i] = oldLocations[k];
+		}
+	}
+
+	private static int home(long fp, int mask) {
+		return (int) (fp ^ (fp >>> 32)) & mask;
+	}
+
+	/*
+	 * The leading eight bytes of the hash, never zero. Hashes too short for that are mixed up from their hash code.
+	 */
+	private static long fingerprint(Hash hash) {
+		byte[] b = hash.hashContents();
+		long v = 0;
+		if (b.length < 8) {
+			v = hash.hashCode() * 0x9E3779B97F4A7C15L;
+		} else {
+			for (int i = 0; i < 8; i++) {
+				v = (v << 8) | (b[i] & 0xFF);
+			}
+		}
+		return v == 0 ? 1 : v;
+	}
+
+	@Override
+	public Hash write(byte[] data) {
+		return cas.write(data);
+	}
+
+	@Override
+	public List<Hash> writeAll(List<byte[]> blocks) {
+		return cas.writeAll(blocks);
+	}
+
+	@Override
+	public HashOutputStream writeStream() throws IOException {
+		return cas.writeStream();
+	}
+
+	@Override
+	public byte[] read(Hash hash) {
+		return fetch(hash);
+	}
+
+	@Override
+	public ByteBuffer readBuffer(Hash hash) {
+		byte[] data = fetch(hash);
+		return data == null ? null : ByteBuffer.wrap(data).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Open a stream over a block. Cached blocks are copied out; others are streamed from the CAS underneath
+	 * without being cached, since streams are used for blocks too big to hold.
+	 */
+	@Override
+	public InputStream readStream(Hash hash) throws IOException {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		byte[] data = lookup(hash);
+		if (data != null) return new ByteArrayInputStream(data);
+		return cas.readStream(hash);
+	}
+
+	@Override
+	public boolean exists(Hash hash) {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		synchronized (this) {
+			if (find(hash) >= 0) return true;
+		}
+		return cas.exists(hash);
+	}
+
+	@Override
+	public List<Hash> suggest(Hash prefix) {
+		return cas.suggest(prefix);
+	}
+
+	@Override
+	public void forEachHash(Consumer<Hash> action) {
+		cas.forEachHash(action);
+	}
+
+	@Override
+	public void close() throws Exception {
+		cas.close();
+	}
+}
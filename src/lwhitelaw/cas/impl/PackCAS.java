@@ -0,0 +1,318 @@
+package lwhitelaw.cas.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lwhitelaw.cas.CAS;
+import lwhitelaw.cas.Hash;
+import lwhitelaw.cas.Hash256Map;
+import lwhitelaw.cas.Hash256Set;
+import lwhitelaw.cas.Hasher;
+
+/**
+ * A CAS that appends blocks to a sequence of segment files in one directory. When the current segment
+ * grows past the segment size, a new one is started. Each segment has an index file which is rebuilt
+ * from the segment if it is missing or out of date. Only the last segment is ever written to.
+ * Blocks are limited to 2 GB each. A single block larger than the segment size gets a segment to itself.
+ * In mapped mode, reads are served from memory mappings of the segments and {@link #readBuffer(Hash)}
+ * returns views of the mappings rather than copies. Instances are thread safe with respect to the JVM.
+ *
+ */
+public class PackCAS implements CAS {
+	public static final long DEFAULT_SEGMENT_SIZE = 256L * 1048576;
+	private static final Pattern SEGMENT_NAME = Pattern.compile("([0-9]{8})\\.pack");
+	private final Path root;
+	private final Hasher hasher;
+	private final long segmentSize;
+	private final boolean mapped;
+	private final List<RandomAccessFile> segments = new ArrayList<>();
+	private final List<MappedLog> mappings = new ArrayList<>();
+	private final Map<Hash,Location> locations = new Hash256Map<>();
+	private final LogAppender appender = new LogAppender();
+	private RandomAccessFile active;
+	private LogIndex activeIndex;
+	private long endptr;
+
+	public PackCAS(Path root, Hasher hasher) throws IOException {
+		this(root, hasher, DEFAULT_SEGMENT_SIZE);
+	}
+
+	public PackCAS(Path root, Hasher hasher, long segmentSize) throws IOException {
+		this(root, hasher, segmentSize, false);
+	}
+
+	public PackCAS(Path root, Hasher hasher, long segmentSize, boolean mapped) throws IOException {
+		if (root == null) throw new NullPointerException("Null root directory");
+		if (hasher == null) throw new NullPointerException("Null hasher");
+		if (segmentSize <= 0) throw new IllegalArgumentException("Segment size must be positive");
+		this.root = root;
+		this.hasher = hasher;
+		this.segmentSize = segmentSize;
+		this.mapped = mapped;
+		Files.createDirectories(root);
+		//Segments must be numbered 0..n-1 with no gaps
+		Set<Integer> numbers = new HashSet<>();
+		int count = 0;
+		try (DirectoryStream<Path> ds = Files.newDirectoryStream(root, "*.pack")) {
+			for (Path p : ds) {
+				Matcher m = SEGMENT_NAME.matcher(p.getFileName().toString());
+				if (m.matches()) {
+					int number = Integer.parseInt(m.group(1));
+					numbers.add(number);
+					count = Math.max(count, number + 1);
+				}
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			if (!numbers.contains(i)) throw new IOException(String.format("Segment %08d missing from %s", i, root));
+		}
+		try {
+			for (int i = 0; i < count; i++) {
+				openSegment(i, i == count - 1);
+			}
+			if (count == 0) openSegment(0, true);
+		} catch (IOException ex) {
+			closeSegments();
+			throw ex;
+		}
+	}
+
+	@Override
+	public synchronized Hash write(byte[] data) {
+		if (data == null) throw new NullPointerException("Null data byte array");
+		try {
+			Hash h = hasher.hash(data);
+			if (locations.containsKey(h)) return h;
+			byte[] hashbytes = h.hashContents();
+			long recordsize = 1 + hashbytes.length + 4 + (long) data.length;
+			if (endptr > 0 && endptr + recordsize > segmentSize) nextSegment();
+			active.seek(endptr);
+			active.writeByte(hashbytes.length & 0xFF);
+			active.write(hashbytes);
+			active.writeInt(data.length & 0x7FFFFFFF);
+			long dataptr = active.getFilePointer();
+			active.write(data);
+			endptr = active.getFilePointer();
+			activeIndex.add(h, dataptr, data.length);
+			locations.put(h, new Location(segments.size() - 1, dataptr, data.length));
+			return h;
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Write a batch of blocks, appending all new records to the active segment in one buffered run
+	 * (starting new segments as needed) and indexing them once they have been written.
+	 */
+	@Override
+	public synchronized List<Hash> writeAll(List<byte[]> blocks) {
+		if (blocks == null) throw new NullPointerException("Null block list");
+		Hash[] hashes = new Hash[blocks.size()];
+		long[] dataptrs = new long[blocks.size()];
+		List<Integer> unindexed = new ArrayList<>();
+		Set<Hash> batch = new Hash256Set();
+		try {
+			appender.start(active.getChannel(), endptr);
+			long ptr = endptr;
+			for (int i = 0; i < hashes.length; i++) {
+				byte[] data = blocks.get(i);
+				if (data == null) throw new NullPointerException("Null data byte array");
+				Hash h = hasher.hash(data);
+				hashes[i] = h;
+				if (locations.containsKey(h) || !batch.add(h)) continue;
+				byte[] hashbytes = h.hashContents();
+				long recordsize = 1 + hashbytes.length + 4 + (long) data.length;
+				if (ptr > 0 && ptr + recordsize > segmentSize) {
+					endptr = appender.finish();
+					index(unindexed, hashes, dataptrs, blocks);
+					nextSegment();
+					appender.start(active.getChannel(), endptr);
+					ptr = endptr;
+				}
+				dataptrs[i] = appender.append(h, data);
+				ptr = dataptrs[i] + data.length;
+				unindexed.add(i);
+			}
+			endptr = appender.finish();
+			index(unindexed, hashes, dataptrs, blocks);
+			activeIndex.flush();
+			return Arrays.asList(hashes);
+		} catch (IOException ex) {
+			return new ArrayList<>(Collections.nCopies(blocks.size(), (Hash) null));
+		}
+	}
+
+	/*
+	 * Index blocks of a batch that have been written to the active segment.
+	 */
+	private void index(List<Integer> unindexed, Hash[] hashes, long[] dataptrs, List<byte[]> blocks) throws IOException {
+		for (int i : unindexed) {
+			int length = blocks.get(i).length;
+			activeIndex.add(hashes[i], dataptrs[i], length);
+			locations.put(hashes[i], new Location(segments.size() - 1, dataptrs[i], length));
+		}
+		unindexed.clear();
+	}
+
+	@Override
+	public synchronized byte[] read(Hash hash) {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		Location loc = locations.get(hash);
+		if (loc == null) return null;
+		try {
+			byte[] data = new byte[loc.length];
+			if (mapped) {
+				mappings.get(loc.segment).slice(loc.offset, loc.length).get(data);
+			} else {
+				RandomAccessFile segment = segments.get(loc.segment);
+				segment.seek(loc.offset);
+				segment.readFully(data);
+			}
+			return data;
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	@Override
+	public synchronized ByteBuffer readBuffer(Hash hash) {
+		if (!mapped) return CAS.super.readBuffer(hash);
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		Location loc = locations.get(hash);
+		if (loc == null) return null;
+		try {
+			return mappings.get(loc.segment).slice(loc.offset, loc.length);
+		} catch (IOException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Open a stream over a block in its segment. The block is read from the file as the stream is consumed.
+	 */
+	@Override
+	public synchronized InputStream readStream(Hash hash) throws IOException {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		Location loc = locations.get(hash);
+		if (loc == null) throw new IOException("Data " + hash.toString() + " cannot be accessed");
+		return new RegionInputStream(segments.get(loc.segment).getChannel(), loc.offset, loc.length);
+	}
+
+	@Override
+	public synchronized boolean exists(Hash hash) {
+		if (hash == null) throw new NullPointerException("Null hash instance");
+		return locations.containsKey(hash);
+	}
+
+	@Override
+	public synchronized void forEachHash(Consumer<Hash> action) {
+		locations.keySet().forEach(action);
+	}
+
+	@Override
+	public synchronized List<Hash> suggest(Hash prefix) {
+		byte[] pbytes = prefix.hashContents();
+		List<Hash> hashes = new ArrayList<>();
+		outer: for (Hash h : locations.keySet()) {
+			byte[] hbytes = h.hashContents();
+			if (hbytes.length < pbytes.length) continue;
+			for (int i = 0; i < pbytes.length; i++) {
+				if (hbytes[i] != pbytes[i]) continue outer;
+			}
+			hashes.add(h);
+		}
+		return hashes;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			activeIndex.close();
+		} finally {
+			closeSegments();
+		}
+	}
+
+	/*
+	 * Start a new active segment. The old segment stays active, with its index open, if the new one can't
+	 * be opened; its index is only closed once the switch has happened.
+	 */
+	private void nextSegment() throws IOException {
+		LogIndex previous = activeIndex;
+		openSegment(segments.size(), true);
+		previous.close();
+	}
+
+	/*
+	 * Open a segment and merge its index into the location map. The index of the
+	 * active segment is kept open for appending. Nothing is added to the store's state
+	 * unless both the segment and its index open.
+	 */
+	private void openSegment(int number, boolean makeActive) throws IOException {
+		String name = String.format("%08d", number);
+		RandomAccessFile segment = new RandomAccessFile(root.resolve(name + ".pack").toFile(), "rw");
+		LogIndex index;
+		try {
+			index = new LogIndex(root.resolve(name + ".idx"), segment);
+		} catch (IOException ex) {
+			segment.close();
+			throw ex;
+		}
+		segments.add(segment);
+		if (mapped) mappings.add(new MappedLog(segment.getChannel()));
+		for (Hash h : index.hashes()) {
+			LogIndex.Entry e = index.get(h);
+			locations.put(h, new Location(number, e.offset, e.length));
+		}
+		if (makeActive) {
+			active = segment;
+			activeIndex = index;
+			endptr = index.end();
+		} else {
+			index.close();
+		}
+	}
+
+	private void closeSegments() throws IOException {
+		IOException failure = null;
+		for (RandomAccessFile segment : segments) {
+			try {
+				segment.close();
+			} catch (IOException ex) {
+				failure = ex;
+			}
+		}
+		if (failure != null) throw failure;
+	}
+
+	/*
+	 * Where a block's data lives.
+	 */
+	private static final class Location {
+		final int segment;
+		final long offset;
+		final int length;
+
+		Location(int segment, long offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package lwhitelaw.cas.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads one region of a file channel with positional reads, straight into the caller's array. It neither
+ * moves nor depends on the channel's position, so any number may be open over a channel shared with other
+ * readers and writers. Closing the stream does not close the channel.
+ *
+ */
+final class RegionInputStream extends InputStream {
+	private final FileChannel channel;
+	private long position;
+	private long remaining;
+
+	RegionInputStream(FileChannel channel, long offset, long length) {
+		this.channel = channel;
+		this.position = offset;
+		this.remaining = length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+		if (len == 0) return 0;
+		if (remaining == 0) return -1;
+		int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+		if (n < 0) throw new IOException("Block truncated in log");
+		position += n;
+		remaining -= n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) {
+		long skipped = Math.max(0, Math.min(n, remaining));
+		position += skipped;
+		remaining -= skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, remaining);
+	}
+}
@@ -1,19 +1,67 @@
 package lwhitelaw.cas.impl;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 import lwhitelaw.cas.Hash;
 import lwhitelaw.cas.Hasher;
 
+/**
+ * Hashes with SHA3-256. Thread safe: each thread hashes whole blocks with a MessageDigest of its own, kept
+ * for reuse, and each incremental digest gets a fresh copy of a prototype.
+ *
+ */
 public class SHA3Hasher implements Hasher {
-	private MessageDigest md;
+	private final MessageDigest prototype;
+	private final ThreadLocal<MessageDigest> perThread = ThreadLocal.withInitial(this::copyPrototype);
 	public SHA3Hasher() throws NoSuchAlgorithmException {
-		md = MessageDigest.getInstance("SHA3-256");
+		prototype = MessageDigest.getInstance("SHA3-256");
 	}
+	
+	private MessageDigest copyPrototype() {
+		//Cloning skips the provider lookup; the prototype is never updated, so it can be cloned from any thread
+		try {
+			return (MessageDigest) prototype.clone();
+		} catch (CloneNotSupportedException e) {
+			try {
+				return MessageDigest.getInstance("SHA3-256");
+			} catch (NoSuchAlgorithmException e1) {
+				throw new IllegalStateException("SHA3-256 went missing", e1); //the constructor found it
+			}
+		}
+	}
+	
 	@Override
 	public Hash hash(byte[] data) {
-		return new Hash(md.digest(data));
+		//digest() leaves the digest reset for the next call
+		return new Hash(perThread.get().digest(data));
+	}
+	
+	@Override
+	public Hash hash(ByteBuffer data) {
+		MessageDigest md = perThread.get();
+		md.update(data);
+		return new Hash(md.digest());
+	}
+	
+	@Override
+	public Digest newDigest() {
+		MessageDigest digest = copyPrototype();
+		return new Digest() {
+			@Override
+			public void update(byte[] data, int off, int len) {
+				digest.update(data, off, len);
+			}
+			@Override
+			public void update(ByteBuffer data) {
+				digest.update(data);
+			}
+			@Override
+			public Hash finish() {
+				return new Hash(digest.digest());
+			}
+		};
 	}
 
 }
@@ -1,27 +1,46 @@
 package lwhitelaw.cas.server;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 
+import lwhitelaw.cas.CAS;
 import lwhitelaw.cas.Hash;
+import lwhitelaw.cas.Hasher;
+import lwhitelaw.cas.impl.BloomFilter;
 import lwhitelaw.cas.impl.FileSystemCAS;
-import lwhitelaw.cas.impl.SHA3Hasher;
+import lwhitelaw.cas.impl.FilteredCAS;
+import lwhitelaw.cas.impl.OffHeapCachingCAS;
+import lwhitelaw.cas.impl.Hashers;
 import lwhitelaw.cas.server.Response.ResponseType;
 
 public class Endpoint {
+	private static final long FILTER_EXPECTED = 1 << 22;
+	private static final double FILTER_FPP = 0.01;
+	
 	public static void main(String[] args) throws Throwable {
 		System.out.println("Parsing port number");
 		int port = Integer.parseInt(args[0]);
 		System.out.println("Parsing storage path");
-		SHA3Hasher sha3h = new SHA3Hasher();
-		FileSystemCAS cas = new FileSystemCAS(Paths.get(args[1]), sha3h);
+		Path root = Paths.get(args[1]);
+		Hasher hasher = Hashers.forStore(root);
+		System.out.println("Store uses " + Hashers.readMarker(root));
+		System.out.println("Filling block filter");
+		CAS filtered = new FilteredCAS(new FileSystemCAS(root, hasher), new BloomFilter(FILTER_EXPECTED, FILTER_FPP));
+		System.out.println("Parsing off-heap cache size in megabytes (optional)");
+		long cacheSize = args.length > 2 ? Long.parseLong(args[2]) * 1048576 : 0;
+		CAS cas = cacheSize > 0 ? new OffHeapCachingCAS(filtered, cacheSize) : filtered;
 		ServerRunnable sr = new ServerRunnable(port,(request) -> {
 			switch (request.type) {
 			case WRITE:
 				Hash h = cas.write(request.requestData);
 				if (h == null) return new Response(ResponseType.FAIL,null,null,null);
 				return new Response(ResponseType.RETURNED_HASH,h,null,null);
+			case WRITE_BATCH:
+				List<Hash> hs = cas.writeAll(Arrays.asList(request.requestBlocks));
+				return new Response(ResponseType.RETURNED_HASHES,null,null,hs.toArray(new Hash[hs.size()]));
 			case READ:
 				byte[] d = cas.read(request.requestHash);
 				if (d == null) return new Response(ResponseType.FAIL,null,null,null);
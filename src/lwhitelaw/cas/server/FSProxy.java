@@ -4,25 +4,29 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
 
+import lwhitelaw.cas.AsyncCAS;
 import lwhitelaw.cas.CAS;
 import lwhitelaw.cas.Hash;
+import lwhitelaw.cas.Hash256Set;
 import lwhitelaw.cas.Hasher;
+import lwhitelaw.cas.impl.BloomFilter;
 import lwhitelaw.cas.impl.FileSystemCAS;
-import lwhitelaw.cas.impl.SHA3Hasher;
+import lwhitelaw.cas.impl.FilteredCAS;
+import lwhitelaw.cas.impl.Hashers;
 import lwhitelaw.cas.server.Response.ResponseType;
 
 public class FSProxy {
+	private static final long FILTER_EXPECTED = 1 << 22;
+	private static final double FILTER_FPP = 0.01;
+	
 	public static void main(String[] args) throws Throwable {
 		System.out.println("Parsing this server port");
 		int port = Integer.parseInt(args[0]);
@@ -36,29 +40,49 @@ public class FSProxy {
 		for (int i = 0; i < paths.length; i++) {
 			paths[i] = Paths.get(args[i+3]);
 		}
-		System.out.println("Creating SHA3 hasher");
-		SHA3Hasher hasher = new SHA3Hasher();
-		System.out.println("Creating CAS interfaces");
-		FileSystemCAS[] casarray = new FileSystemCAS[paths.length];
-		for (int i = 0; i < casarray.length; i++) {
-			casarray[i] = new FileSystemCAS(paths[i],new SHA3Hasher()); //can't share hasher because multithreading
+		System.out.println("Creating hasher");
+		//Every delegate must use the same algorithm, as blocks are copied between them by hash
+		String algorithm = Hashers.readMarker(paths[0]);
+		for (Path p : paths) {
+			if (!Hashers.readMarker(p).equals(algorithm)) throw new Exception("Delegates use different hash algorithms");
 		}
-		
-		//For concurrently taking advantage of multiple networked CAS systems;
+		System.out.println("Delegates use " + algorithm);
+		Hasher hasher = Hashers.forName(algorithm); //thread safe, so shared by the server and every delegate
+		System.out.println("Creating CAS interfaces and filling block filters");
+		//For concurrently taking advantage of multiple file systems;
 		//most operations can be made independent, I'd like to think
-		Executor async = Executors.newFixedThreadPool(casarray.length);
+		Executor async = Executors.newFixedThreadPool(paths.length);
+		
+		AsyncCAS[] casarray = new AsyncCAS[paths.length];
+		for (int i = 0; i < casarray.length; i++) {
+			//Lookups of blocks a replica doesn't have are answered from memory; this is the only writer to each replica
+			CAS replica = new FilteredCAS(new FileSystemCAS(paths[i],hasher), new BloomFilter(FILTER_EXPECTED, FILTER_FPP));
+			casarray[i] = AsyncCAS.of(replica, async);
+		}
 		
 		ServerRunnable serverthread = new ServerRunnable(port,(request) -> {
 			switch (request.type) {
 			case WRITE: {
-				Hash h = attemptWrite(redundancy, casarray, hasher, request.requestData, async);
+				Hash h = attemptWrite(redundancy, casarray, hasher, request.requestData).join();
 				if (h != null) return new Response(ResponseType.RETURNED_HASH,h,null,null);
 				return new Response(ResponseType.FAIL,null,null,null);
 			}
+			case WRITE_BATCH: {
+				@SuppressWarnings("unchecked")
+				CompletableFuture<Hash>[] writes = (CompletableFuture<Hash>[]) new CompletableFuture<?>[request.requestBlocks.length];
+				for (int i = 0; i < writes.length; i++) {
+					writes[i] = attemptWrite(redundancy, casarray, hasher, request.requestBlocks[i]);
+				}
+				Hash[] hs = new Hash[writes.length];
+				for (int i = 0; i < hs.length; i++) {
+					hs[i] = writes[i].join();
+				}
+				return new Response(ResponseType.RETURNED_HASHES,null,null,hs);
+			}
 			case READ: {
 				byte[] d = attemptRead(casarray, request.requestHash);
 				if (d != null) {
-					if (ensureBlocks) attemptWrite(redundancy, casarray, hasher, d, async);
+					if (ensureBlocks) attemptWrite(redundancy, casarray, hasher, d);
 					return new Response(ResponseType.RETURNED_BLOCK,null,d,null);
 				}
 				return new Response(ResponseType.FAIL,null,null,null);
@@ -69,16 +93,20 @@ public class FSProxy {
 				if (ensureBlocks) {
 					byte[] d = attemptRead(casarray, request.requestHash);
 					if (d != null) {
-						attemptWrite(redundancy, casarray, hasher, d, async);
+						attemptWrite(redundancy, casarray, hasher, d);
 					}
 				}
 				return new Response(ResponseType.SUCCESS,null,null,null);
 			}
 			case SUGGEST: {
-				Set<Hash> allSuggestions = new HashSet<>();
-				for (CAS cas : casarray) {
-					List<Hash> suggestions = cas.suggest(request.requestHash);
-					allSuggestions.addAll(suggestions);
+				@SuppressWarnings("unchecked")
+				CompletableFuture<List<Hash>>[] results = (CompletableFuture<List<Hash>>[]) new CompletableFuture<?>[casarray.length];
+				for (int i = 0; i < casarray.length; i++) {
+					results[i] = casarray[i].suggest(request.requestHash);
+				}
+				Set<Hash> allSuggestions = new Hash256Set();
+				for (CompletableFuture<List<Hash>> suggestions : results) {
+					allSuggestions.addAll(suggestions.join());
 				}
 				List<Hash> allSuggestionsList = new ArrayList<>(allSuggestions);
 				return new Response(ResponseType.RETURNED_SUGGEST, null, null, allSuggestionsList.toArray(new Hash[allSuggestionsList.size()]));
@@ -96,116 +124,81 @@ public class FSProxy {
 		serverthread.run();
 	}
 	
-	public static FileSystemCAS[] shuffled(FileSystemCAS[] casarray, Hash h) {
+	public static <T> T[] shuffled(T[] casarray, Hash h) {
 		Random r = new Random(h.hashCode());
-		FileSystemCAS[] out = new FileSystemCAS[casarray.length];
-		System.arraycopy(casarray, 0, out, 0, casarray.length);
+		T[] out = Arrays.copyOf(casarray, casarray.length);
 		for (int i = 0; i < out.length; i++) {
 			int idx = r.nextInt(out.length);
-			FileSystemCAS temp = out[i];
+			T temp = out[i];
 			out[i] = out[idx];
 			out[idx] = temp;
 		}
 		return out;
 	}
 	
-	public static Hash attemptWrite(int redundancy, FileSystemCAS[] casarray, Hasher hasher, byte[] data) {
-		Hash h = hasher.hash(data);
-		FileSystemCAS[] order = shuffled(casarray,h);
-		List<FileSystemCAS> hasBlock = new ArrayList<>();
-		List<FileSystemCAS> missingBlock = new ArrayList<>();
-		for (int i = 0; i < order.length; i++) {
-			if (order[i].exists(h)) {
-				hasBlock.add(order[i]);
-			} else {
-				missingBlock.add(order[i]);
-			}
-		}
-		while (missingBlock.size() > 0 && hasBlock.size() < redundancy) {
-			FileSystemCAS cas = missingBlock.remove(0);
-			Hash resultH = cas.write(data);
-			if (resultH != null) {
-				hasBlock.add(cas);
-			}
-		}
-		if (hasBlock.size() >= redundancy) {
-			return h;
-		} else {
-			return null;
-		}
-	}
-	
-	//Async version
-	public static Hash attemptWrite(int redundancy, FileSystemCAS[] casarray, Hasher hasher, byte[] data, Executor async) {
+	public static CompletableFuture<Hash> attemptWrite(int redundancy, AsyncCAS[] casarray, Hasher hasher, byte[] data) {
 		//Hash data
 		final Hash h = hasher.hash(data);
-		FileSystemCAS[] order = shuffled(casarray,h);
+		AsyncCAS[] order = shuffled(casarray,h);
 		//determine what nodes have this block we're writing
-		List<FileSystemCAS> hasBlock = new ArrayList<>();
-		List<FileSystemCAS> missingBlock = new ArrayList<>();
-		Future<Boolean>[] existResults = (Future<Boolean>[]) new Future<?>[order.length];
+		@SuppressWarnings("unchecked")
+		CompletableFuture<Boolean>[] existResults = (CompletableFuture<Boolean>[]) new CompletableFuture<?>[order.length];
 		for (int i = 0; i < order.length; i++) {
-			final int lambdaI = i;
-			existResults[i] = asyncCall(async,() -> order[lambdaI].exists(h));
+			existResults[i] = order[i].exists(h);
 		}
-		for (int i = 0; i < order.length; i++) {
-			if (getResultNoEx(existResults[i])) {
-				hasBlock.add(order[i]);
-			} else {
-				missingBlock.add(order[i]);
+		return CompletableFuture.allOf(existResults).thenCompose((v) -> {
+			int hasBlock = 0;
+			List<AsyncCAS> missingBlock = new ArrayList<>();
+			for (int i = 0; i < order.length; i++) {
+				if (existResults[i].join()) {
+					hasBlock++;
+				} else {
+					missingBlock.add(order[i]);
+				}
 			}
+			return writeMissing(redundancy, hasBlock, missingBlock, data);
+		}).thenApply((written) -> written ? h : null);
+	}
+	
+	/*
+	 * Write to as many missing nodes at once as are still needed, then go again with the rest for any
+	 * writes that failed. We aren't trying failed nodes again. Completes with whether redundancy was met.
+	 */
+	private static CompletableFuture<Boolean> writeMissing(int redundancy, int hasBlock, List<AsyncCAS> missingBlock, byte[] data) {
+		if (hasBlock >= redundancy) return CompletableFuture.completedFuture(true);
+		if (missingBlock.isEmpty()) return CompletableFuture.completedFuture(false);
+		int needed = Math.min(redundancy-hasBlock, missingBlock.size()); //How many writes do we need to attempt this time?
+		@SuppressWarnings("unchecked")
+		CompletableFuture<Hash>[] writeResults = (CompletableFuture<Hash>[]) new CompletableFuture<?>[needed];
+		for (int i = 0; i < needed; i++) {
+			writeResults[i] = missingBlock.remove(0).write(data);
 		}
-		//we now have two lists, hasBlock, and missingBlock describing which nodes have them.
-		while (missingBlock.size() > 0 && hasBlock.size() < redundancy) {
-			int needed = redundancy-hasBlock.size(); //How many writes do we need to attempt this time?
-//			System.out.println("Needed: " + needed + " Missing: " + missingBlock.size() + " Have: " + hasBlock.size());
-			List<FileSystemCAS> attemptedNodes = new ArrayList<>();
-			//Try to attempt as many nodes at once.
-			while (needed > 0 && missingBlock.size() > 0) {
-				needed--;
-				attemptedNodes.add(missingBlock.remove(0));
-			}
-//			System.out.println("Attempting " + attemptedNodes.size() + " nodes");
-			//Now attempt the writes async.
-			Future<Hash>[] writeResults = (Future<Hash>[]) new Future<?>[attemptedNodes.size()];
+		return CompletableFuture.allOf(writeResults).thenCompose((v) -> {
+			int nowHas = hasBlock;
 			for (int i = 0; i < writeResults.length; i++) {
-				final int lambdaI = i;
-				writeResults[i] = asyncCall(async,() -> attemptedNodes.get(lambdaI).write(data));
+				if (writeResults[i].join() != null) nowHas++;
 			}
-			//Let's see what worked, and add the good ones to our success list. We aren't trying failed nodes
-			//again.
-			for (int i = 0; i < writeResults.length; i++) {
-				if (getResultNoEx(writeResults[i]) != null) {
-					hasBlock.add(attemptedNodes.get(i));
-				}
-			}
-//			System.out.println("Now Have: " + hasBlock.size() + " Redundancy: " + redundancy);
-	//		NetworkCAS cas = missingBlock.remove(0);
-	//		Hash resultH = cas.write(data);
-	//		if (resultH != null) {
-	//			hasBlock.add(cas);
-	//		}
-		}
-		if (hasBlock.size() >= redundancy) {
-			return h;
-		} else {
-			return null;
-		}
+			return writeMissing(redundancy, nowHas, missingBlock, data);
+		});
 	}
 	
-	public static byte[] attemptRead(FileSystemCAS[] casarray, Hash h) {
-		FileSystemCAS[] order = shuffled(casarray,h);
+	public static byte[] attemptRead(AsyncCAS[] casarray, Hash h) {
+		AsyncCAS[] order = shuffled(casarray,h);
 		for (int i = 0; i < order.length; i++) {
-			byte[] data = order[i].read(h);
+			byte[] data = order[i].read(h).join();
 			if (data != null) return data;
 		}
 		return null;
 	}
 	
-	public static boolean attemptExist(FileSystemCAS[] casarray, Hash h) {
-		FileSystemCAS[] order = shuffled(casarray,h);
-		for (int i = 0; i < order.length; i++) {
-			if (order[i].exists(h)) return true;
+	public static boolean attemptExist(AsyncCAS[] casarray, Hash h) {
+		@SuppressWarnings("unchecked")
+		CompletableFuture<Boolean>[] existResults = (CompletableFuture<Boolean>[]) new CompletableFuture<?>[casarray.length];
+		for (int i = 0; i < casarray.length; i++) {
+			existResults[i] = casarray[i].exists(h);
+		}
+		for (int i = 0; i < existResults.length; i++) {
+			if (existResults[i].join()) return true;
 		}
 		return false;
 	}
@@ -218,20 +211,4 @@ public class FSProxy {
 //		}
 //		return !aDeleteFailed;
 //	}
-	
-	public static <R> Future<R> asyncCall(Executor ex, Callable<R> call) {
-		FutureTask<R> task = new FutureTask<>(call);
-		ex.execute(task);
-		return task;
-	}
-	
-	public static <R> R getResultNoEx(Future<R> fut) {
-		try {
-			return fut.get();
-		} catch (InterruptedException ex) {
-			throw new Error("Interruption should not happen!");
-		} catch (ExecutionException e) {
-			throw new Error("Exception should not happen!",e);
-		}
-	}
 }
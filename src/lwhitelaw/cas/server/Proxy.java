@@ -3,22 +3,21 @@ package lwhitelaw.cas.server;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
 
-import lwhitelaw.cas.CAS;
+import lwhitelaw.cas.AsyncCAS;
 import lwhitelaw.cas.Hash;
+import lwhitelaw.cas.Hash256Set;
 import lwhitelaw.cas.Hasher;
+import lwhitelaw.cas.impl.AsyncNetworkCAS;
 import lwhitelaw.cas.impl.NetworkCAS;
-import lwhitelaw.cas.impl.SHA3Hasher;
+import lwhitelaw.cas.impl.Hashers;
 import lwhitelaw.cas.server.Response.ResponseType;
 
 public class Proxy {
@@ -41,28 +40,46 @@ public class Proxy {
 				ports[i] = Integer.parseInt(split[1]);
 			}
 		}
-		System.out.println("Creating SHA3 hasher");
-		SHA3Hasher hasher = new SHA3Hasher();
+		System.out.println("Creating hasher");
+		//Must match the delegates' stores; remote stores can't be asked, so it is given with -Dcas.hasher
+		String algorithm = System.getProperty("cas.hasher", Hashers.SHA3_256);
+		System.out.println("Delegates use " + algorithm);
+		Hasher hasher = Hashers.forName(algorithm);
 		System.out.println("Creating network CAS interfaces");
-		NetworkCAS[] casarray = new NetworkCAS[ports.length];
+		AsyncCAS[] casarray = new AsyncCAS[ports.length];
 		for (int i = 0; i < casarray.length; i++) {
-			casarray[i] = new NetworkCAS(ips[i], ports[i]);
+			casarray[i] = new AsyncNetworkCAS(ips[i], ports[i]);
 		}
 		
-		//For concurrently taking advantage of multiple networked CAS systems;
-		//most operations can be made independent, I'd like to think
+		//Requests to the delegates are pipelined, so nothing waits on a thread per request.
+		//Follow-up requests are sent from here rather than from the connection reader threads,
+		//which must never block on a socket write.
 		Executor async = Executors.newFixedThreadPool(casarray.length);
 		
 		ServerRunnable serverthread = new ServerRunnable(port,(request) -> {
 			switch (request.type) {
 			case WRITE: {
-				Hash h = attemptWriteAsync(redundancy, casarray, hasher, request.requestData, async);
+				Hash h = attemptWriteAsync(redundancy, casarray, hasher, request.requestData, async).join();
 				if (h != null) return new Response(ResponseType.RETURNED_HASH,h,null,null);
 				return new Response(ResponseType.FAIL,null,null,null);
 			}
+			case WRITE_BATCH: {
+				//Every block in the batch is in flight at once
+				@SuppressWarnings("unchecked")
+				CompletableFuture<Hash>[] writes = (CompletableFuture<Hash>[]) new CompletableFuture<?>[request.requestBlocks.length];
+				for (int i = 0; i < writes.length; i++) {
+					writes[i] = attemptWriteAsync(redundancy, casarray, hasher, request.requestBlocks[i], async);
+				}
+				Hash[] hs = new Hash[writes.length];
+				for (int i = 0; i < hs.length; i++) {
+					hs[i] = writes[i].join();
+				}
+				return new Response(ResponseType.RETURNED_HASHES,null,null,hs);
+			}
 			case READ: {
 				byte[] d = attemptRead(casarray, request.requestHash);
 				if (d != null) {
+					//Repair redundancy in the background; the caller doesn't need to wait for it
 					attemptWriteAsync(redundancy, casarray, hasher, d, async);
 					return new Response(ResponseType.RETURNED_BLOCK,null,d,null);
 				}
@@ -78,10 +95,14 @@ public class Proxy {
 				return new Response(ResponseType.SUCCESS,null,null,null);
 			}
 			case SUGGEST: {
-				Set<Hash> allSuggestions = new HashSet<>();
-				for (CAS cas : casarray) {
-					List<Hash> suggestions = cas.suggest(request.requestHash);
-					allSuggestions.addAll(suggestions);
+				@SuppressWarnings("unchecked")
+				CompletableFuture<List<Hash>>[] results = (CompletableFuture<List<Hash>>[]) new CompletableFuture<?>[casarray.length];
+				for (int i = 0; i < casarray.length; i++) {
+					results[i] = casarray[i].suggest(request.requestHash);
+				}
+				Set<Hash> allSuggestions = new Hash256Set();
+				for (CompletableFuture<List<Hash>> suggestions : results) {
+					allSuggestions.addAll(suggestions.join());
 				}
 				List<Hash> allSuggestionsList = new ArrayList<>(allSuggestions);
 				return new Response(ResponseType.RETURNED_SUGGEST, null, null, allSuggestionsList.toArray(new Hash[allSuggestionsList.size()]));
@@ -98,13 +119,12 @@ public class Proxy {
 		serverthread.run();
 	}
 	
-	public static NetworkCAS[] shuffled(NetworkCAS[] ncas) {
+	public static <T> T[] shuffled(T[] ncas) {
 		Random r = new Random();
-		NetworkCAS[] out = new NetworkCAS[ncas.length];
-		System.arraycopy(ncas, 0, out, 0, ncas.length);
+		T[] out = Arrays.copyOf(ncas, ncas.length);
 		for (int i = 0; i < out.length; i++) {
 			int idx = r.nextInt(out.length);
-			NetworkCAS temp = out[i];
+			T temp = out[i];
 			out[i] = out[idx];
 			out[idx] = temp;
 		}
@@ -137,76 +157,70 @@ public class Proxy {
 		}
 	}
 	
-	public static Hash attemptWriteAsync(int redundancy, NetworkCAS[] casarray, Hasher hasher, byte[] data, Executor async) {
-		NetworkCAS[] order = shuffled(casarray);
+	public static CompletableFuture<Hash> attemptWriteAsync(int redundancy, AsyncCAS[] casarray, Hasher hasher, byte[] data, Executor async) {
+		AsyncCAS[] order = shuffled(casarray);
 		//Hash data
 		Hash h = hasher.hash(data);
 		//determine what nodes have this block we're writing
-		List<NetworkCAS> hasBlock = new ArrayList<>();
-		List<NetworkCAS> missingBlock = new ArrayList<>();
-		Future<Boolean>[] existResults = (Future<Boolean>[]) new Future<?>[order.length];
+		@SuppressWarnings("unchecked")
+		CompletableFuture<Boolean>[] existResults = (CompletableFuture<Boolean>[]) new CompletableFuture<?>[order.length];
 		for (int i = 0; i < order.length; i++) {
-			final int lambdaI = i;
-			existResults[i] = asyncCall(async,() -> order[lambdaI].exists(h));
+			existResults[i] = order[i].exists(h);
 		}
-		for (int i = 0; i < order.length; i++) {
-			if (getResultNoEx(existResults[i])) {
-				hasBlock.add(order[i]);
-			} else {
-				missingBlock.add(order[i]);
+		return CompletableFuture.allOf(existResults).thenComposeAsync((v) -> {
+			int hasBlock = 0;
+			List<AsyncCAS> missingBlock = new ArrayList<>();
+			for (int i = 0; i < order.length; i++) {
+				if (existResults[i].join()) {
+					hasBlock++;
+				} else {
+					missingBlock.add(order[i]);
+				}
 			}
+			return writeMissing(redundancy, hasBlock, missingBlock, data, async);
+		}, async).thenApply((written) -> written ? h : null);
+	}
+	
+	/*
+	 * Write to as many missing nodes at once as are still needed, then go again with the rest for any
+	 * writes that failed. We aren't trying failed nodes again. Completes with whether redundancy was met.
+	 */
+	private static CompletableFuture<Boolean> writeMissing(int redundancy, int hasBlock, List<AsyncCAS> missingBlock, byte[] data, Executor async) {
+		if (hasBlock >= redundancy) return CompletableFuture.completedFuture(true);
+		if (missingBlock.isEmpty()) return CompletableFuture.completedFuture(false);
+		int needed = Math.min(redundancy-hasBlock, missingBlock.size()); //How many writes do we need to attempt this time?
+		@SuppressWarnings("unchecked")
+		CompletableFuture<Hash>[] writeResults = (CompletableFuture<Hash>[]) new CompletableFuture<?>[needed];
+		for (int i = 0; i < needed; i++) {
+			writeResults[i] = missingBlock.remove(0).write(data);
 		}
-		//we now have two lists, hasBlock, and missingBlock describing which nodes have them.
-		while (missingBlock.size() > 0 && hasBlock.size() < redundancy) {
-			int needed = redundancy-hasBlock.size(); //How many writes do we need to attempt this time?
-			//System.out.println("Needed: " + needed + " Missing: " + missingBlock.size() + " Have: " + hasBlock.size());
-			List<NetworkCAS> attemptedNodes = new ArrayList<>();
-			//Try to attempt as many nodes at once.
-			while (needed > 0 && missingBlock.size() > 0) {
-				needed--;
-				attemptedNodes.add(missingBlock.remove(0));
-			}
-			//System.out.println("Attempting " + attemptedNodes.size() + " nodes");
-			//Now attempt the writes async.
-			Future<Hash>[] writeResults = (Future<Hash>[]) new Future<?>[attemptedNodes.size()];
+		return CompletableFuture.allOf(writeResults).thenComposeAsync((v) -> {
+			int nowHas = hasBlock;
 			for (int i = 0; i < writeResults.length; i++) {
-				final int lambdaI = i;
-				writeResults[i] = asyncCall(async,() -> attemptedNodes.get(lambdaI).write(data));
+				if (writeResults[i].join() != null) nowHas++;
 			}
-			//Let's see what worked, and add the good ones to our success list. We aren't trying failed nodes
-			//again.
-			for (int i = 0; i < writeResults.length; i++) {
-				if (getResultNoEx(writeResults[i]) != null) {
-					hasBlock.add(attemptedNodes.get(i));
-				}
-			}
-			//System.out.println("Now Have: " + hasBlock.size() + " Redundancy: " + redundancy);
-//			NetworkCAS cas = missingBlock.remove(0);
-//			Hash resultH = cas.write(data);
-//			if (resultH != null) {
-//				hasBlock.add(cas);
-//			}
-		}
-		if (hasBlock.size() >= redundancy) {
-			return h;
-		} else {
-			return null;
-		}
+			return writeMissing(redundancy, nowHas, missingBlock, data, async);
+		}, async);
 	}
 	
-	public static byte[] attemptRead(NetworkCAS[] casarray, Hash h) {
-		NetworkCAS[] order = shuffled(casarray);
+	public static byte[] attemptRead(AsyncCAS[] casarray, Hash h) {
+		//One at a time, so only one copy of the block comes over the wire
+		AsyncCAS[] order = shuffled(casarray);
 		for (int i = 0; i < order.length; i++) {
-			byte[] data = order[i].read(h);
+			byte[] data = order[i].read(h).join();
 			if (data != null) return data;
 		}
 		return null;
 	}
 	
-	public static boolean attemptExist(NetworkCAS[] casarray, Hash h) {
-		NetworkCAS[] order = shuffled(casarray);
-		for (int i = 0; i < order.length; i++) {
-			if (order[i].exists(h)) return true;
+	public static boolean attemptExist(AsyncCAS[] casarray, Hash h) {
+		@SuppressWarnings("unchecked")
+		CompletableFuture<Boolean>[] existResults = (CompletableFuture<Boolean>[]) new CompletableFuture<?>[casarray.length];
+		for (int i = 0; i < casarray.length; i++) {
+			existResults[i] = casarray[i].exists(h);
+		}
+		for (int i = 0; i < existResults.length; i++) {
+			if (existResults[i].join()) return true;
 		}
 		return false;
 	}
@@ -219,20 +233,4 @@ public class Proxy {
 //		}
 //		return !aDeleteFailed;
 //	}
-	
-	public static <R> Future<R> asyncCall(Executor ex, Callable<R> call) {
-		FutureTask<R> task = new FutureTask<>(call);
-		ex.execute(task);
-		return task;
-	}
-	
-	public static <R> R getResultNoEx(Future<R> fut) {
-		try {
-			return fut.get();
-		} catch (InterruptedException ex) {
-			throw new Error("Interruption should not happen!");
-		} catch (ExecutionException e) {
-			throw new Error("Exception should not happen!",e);
-		}
-	}
 }
@@ -11,7 +11,8 @@ public class Request {
 		WRITE(0x00),
 		READ(0x01),
 		EXIST(0x02),
-		SUGGEST(0x03);
+		SUGGEST(0x03),
+		WRITE_BATCH(0x04);
 		
 		public final int flagByte;
 		RequestType(int flag) {
@@ -22,14 +23,17 @@ public class Request {
 	public final RequestType type;
 	public final Hash requestHash;
 	public final byte[] requestData;
+	public final byte[][] requestBlocks;
 	
-	public Request(RequestType t, Hash h, byte[] d) {
+	public Request(RequestType t, Hash h, byte[] d, byte[][] b) {
 		if (t == null) throw new IllegalArgumentException();
 		type = t;
-		if (t != Request.RequestType.WRITE && h == null) throw new IllegalArgumentException();
+		if (t != Request.RequestType.WRITE && t != Request.RequestType.WRITE_BATCH && h == null) throw new IllegalArgumentException();
 		requestHash = h;
 		if (t == Request.RequestType.WRITE && d == null) throw new IllegalArgumentException();
 		requestData = d;
+		if (t == Request.RequestType.WRITE_BATCH && b == null) throw new IllegalArgumentException();
+		requestBlocks = b;
 	}
 	
 	public static Request fromStream(InputStream istr) throws IOException {
@@ -40,28 +44,39 @@ public class Request {
 			int dsize = is.readInt();
 			byte[] ddata = new byte[dsize];
 			is.readFully(ddata);
-			return new Request(RequestType.WRITE, null, ddata);
+			return new Request(RequestType.WRITE, null, ddata, null);
 		}
 		case 0x01: {
 			int hsize = is.readUnsignedByte();
 			byte[] hdata = new byte[hsize];
 			is.readFully(hdata);
 			Hash h = new Hash(hdata);
-			return new Request(RequestType.READ, h, null);
+			return new Request(RequestType.READ, h, null, null);
 		}
 		case 0x02: {
 			int hsize = is.readUnsignedByte();
 			byte[] hdata = new byte[hsize];
 			is.readFully(hdata);
 			Hash h = new Hash(hdata);
-			return new Request(RequestType.EXIST, h, null);
+			return new Request(RequestType.EXIST, h, null, null);
 		}
 		case 0x03: {
 			int hsize = is.readUnsignedByte();
 			byte[] hdata = new byte[hsize];
 			is.readFully(hdata);
 			Hash h = new Hash(hdata);
-			return new Request(RequestType.SUGGEST, h, null);
+			return new Request(RequestType.SUGGEST, h, null, null);
+		}
+		case 0x04: {
+			int bcount = is.readInt();
+			if (bcount < 0) throw new IOException("Bad block count");
+			byte[][] blocks = new byte[bcount][];
+			for (int i = 0; i < bcount; i++) {
+				int dsize = is.readInt();
+				blocks[i] = new byte[dsize];
+				is.readFully(blocks[i]);
+			}
+			return new Request(RequestType.WRITE_BATCH, null, null, blocks);
 		}
 		default: {
 			throw new IOException("Bad type");
@@ -75,6 +90,8 @@ public class Request {
 		sb.append("[");
 		if (type == RequestType.WRITE) {
 			sb.append(requestData.length + " bytes");
+		} else if (type == RequestType.WRITE_BATCH) {
+			sb.append(requestBlocks.length + " blocks");
 		} else {
 			sb.append(requestHash);
 		}
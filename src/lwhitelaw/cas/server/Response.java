@@ -12,7 +12,8 @@ public class Response {
 		RETURNED_BLOCK(0x01),
 		SUCCESS(0x02),
 		FAIL(0x03),
-		RETURNED_SUGGEST(0x04);
+		RETURNED_SUGGEST(0x04),
+		RETURNED_HASHES(0x05);
 		
 		public final int flagByte;
 		ResponseType(int flag) {
@@ -36,7 +37,7 @@ public class Response {
 			throw new IllegalArgumentException();
 		}
 		responseData = d;
-		if (t == ResponseType.RETURNED_SUGGEST && s == null) {
+		if ((t == ResponseType.RETURNED_SUGGEST || t == ResponseType.RETURNED_HASHES) && s == null) {
 			throw new IllegalArgumentException();
 		}
 		responseHashes = s;
@@ -66,6 +67,20 @@ public class Response {
 			}
 		}
 		break;
+		case RETURNED_HASHES: {
+			//Failed writes are sent as zero-length hashes
+			os.writeInt(responseHashes.length);
+			for (int i = 0; i < responseHashes.length; i++) {
+				if (responseHashes[i] == null) {
+					os.writeByte(0);
+				} else {
+					byte[] hdata = responseHashes[i].hashContents();
+					os.writeByte(hdata.length & 0xFF);
+					os.write(hdata);
+				}
+			}
+		}
+		break;
 		default: {
 			//nothing else to write
 		}